@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.cs.persistence.CRSManager;
+import org.deegree.cs.refs.coordinatesystem.CRSRef;
+
+/**
+ * Caches the CRS references that are created for srsName values while parsing geometries.
+ * <p>
+ * The deegree CRSManager creates a new, unresolved reference for every call of
+ * {@link CRSManager#getCRSRef(String)}, which is then resolved again for every geometry. The cache
+ * shares one reference per srsName, which is resolved once when it is added. srsNames that cannot be
+ * resolved are cached as negative entries, so that the CRS stores are not searched again for them.
+ * </p>
+ * <p>
+ * The CRS configuration is JVM-wide, so is the cache. It must be cleared whenever the CRSManager is
+ * initialized with another configuration.
+ * </p>
+ */
+public final class CRSReferenceCache {
+
+	private static final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+	private static final class Entry {
+		private final ICRS crs;
+		private final boolean known;
+
+		private Entry(final ICRS crs, final boolean known) {
+			this.crs = crs;
+			this.known = known;
+		}
+	}
+
+	private CRSReferenceCache() {}
+
+	/**
+	 * Get the CRS reference for an srsName, like {@link CRSManager#getCRSRef(String)} does
+	 *
+	 * @param srsName the srsName, may be <code>null</code>
+	 * @return the CRS reference, or <code>null</code> if srsName is <code>null</code>. Unknown
+	 *         srsNames are still returned as (unresolvable) reference.
+	 */
+	public static ICRS getCRSRef(final String srsName) {
+		if (srsName == null) {
+			return null;
+		}
+		return entry(srsName).crs;
+	}
+
+	/**
+	 * Get the resolved CRS for an srsName
+	 *
+	 * @param srsName the srsName
+	 * @return the CRS, or <code>null</code> if the srsName is unknown
+	 */
+	public static ICRS lookup(final String srsName) {
+		final Entry entry = entry(srsName);
+		return entry.known ? entry.crs : null;
+	}
+
+	/**
+	 * Remove all entries, must be called after the CRS configuration has changed
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * @return the number of cached srsNames, including the unknown ones
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+	private static Entry entry(final String srsName) {
+		final Entry entry = cache.get(srsName);
+		if (entry != null) {
+			return entry;
+		}
+		return cache.computeIfAbsent(srsName, CRSReferenceCache::resolve);
+	}
+
+	private static Entry resolve(final String srsName) {
+		final ICRS crs = CRSManager.getCRSRef(srsName);
+		try {
+			if (crs instanceof CRSRef && ((CRSRef) crs).getReferencedObject() == null) {
+				return new Entry(crs, false);
+			}
+			return new Entry(crs, true);
+		} catch (final RuntimeException e) {
+			// Negative entry: unknown or invalid srsName
+			return new Entry(crs, false);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.vecmath.Point3d;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.deegree.cs.CoordinateTransformer;
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.cs.exceptions.TransformationException;
+
+/**
+ * Transforms JTS geometries between coordinate reference systems with the deegree transformation
+ * machinery.
+ * <p>
+ * Transformers are cached per pair of source and target srsName, so that the transformation chain,
+ * including grid based transformations like the NTv2 grid of the SRS configuration, is only set up
+ * once. The coordinates of all geometries of a call are transformed in one batch.
+ * </p>
+ * <p>
+ * Like the {@link CRSReferenceCache}, the cache must be cleared whenever the CRSManager is initialized
+ * with another configuration.
+ * </p>
+ */
+final class CoordinateTransformerCache {
+
+	private static final ConcurrentMap<String, CoordinateTransformer> transformers = new ConcurrentHashMap<>();
+
+	private CoordinateTransformerCache() {}
+
+	/**
+	 * Transforms the given geometries. The geometries are not modified, transformed copies are
+	 * returned.
+	 *
+	 * @param geometries the geometries, all with coordinates in the source CRS
+	 * @param sourceSrsName srsName of the source CRS
+	 * @param targetSrsName srsName of the target CRS
+	 * @return the transformed geometries, in the same order
+	 * @throws TransformationException if a source or target CRS is unknown, or if the transformation
+	 *         failed
+	 */
+	static List<Geometry> transform(final List<Geometry> geometries, final String sourceSrsName,
+			final String targetSrsName) throws TransformationException {
+		final List<Geometry> copies = new ArrayList<>(geometries.size());
+		for (final Geometry geometry : geometries) {
+			copies.add((Geometry) geometry.clone());
+		}
+		if (sourceSrsName.equals(targetSrsName)) {
+			return copies;
+		}
+		final ICRS source = lookup(sourceSrsName);
+		final CoordinateTransformer transformer = transformer(source, sourceSrsName, targetSrsName);
+
+		// Collect all coordinates
+		final List<Point3d> points = new ArrayList<>();
+		final CoordinateSequenceFilter collector = new CoordinateSequenceFilter() {
+			@Override
+			public void filter(final CoordinateSequence seq, final int i) {
+				final double z = seq.getOrdinate(i, CoordinateSequence.Z);
+				points.add(new Point3d(seq.getX(i), seq.getY(i), Double.isNaN(z) ? 0 : z));
+			}
+
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return false;
+			}
+		};
+		for (final Geometry copy : copies) {
+			copy.apply(collector);
+		}
+		if (points.isEmpty()) {
+			return copies;
+		}
+
+		final List<Point3d> transformed = transformer.transform(source, points);
+		if (transformed.size() != points.size()) {
+			throw new TransformationException("Transformation from '" + sourceSrsName + "' to '" + targetSrsName
+					+ "' returned " + transformed.size() + " instead of " + points.size() + " points");
+		}
+
+		// Write back in the same order
+		final CoordinateSequenceFilter writer = new CoordinateSequenceFilter() {
+			private int index = 0;
+
+			@Override
+			public void filter(final CoordinateSequence seq, final int i) {
+				final Point3d p = transformed.get(index++);
+				seq.setOrdinate(i, CoordinateSequence.X, p.x);
+				seq.setOrdinate(i, CoordinateSequence.Y, p.y);
+				if (!Double.isNaN(seq.getOrdinate(i, CoordinateSequence.Z))) {
+					seq.setOrdinate(i, CoordinateSequence.Z, p.z);
+				}
+			}
+
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return true;
+			}
+		};
+		for (final Geometry copy : copies) {
+			copy.apply(writer);
+		}
+		return copies;
+	}
+
+	/**
+	 * Remove all cached transformers, must be called after the CRS configuration has changed
+	 */
+	static void clear() {
+		transformers.clear();
+	}
+
+	private static CoordinateTransformer transformer(final ICRS source, final String sourceSrsName,
+			final String targetSrsName) throws TransformationException {
+		final String key = sourceSrsName + '\n' + targetSrsName;
+		CoordinateTransformer transformer = transformers.get(key);
+		if (transformer == null) {
+			final ICRS target = lookup(targetSrsName);
+			try {
+				transformer = new CoordinateTransformer(target);
+			} catch (final IllegalArgumentException e) {
+				throw new TransformationException("No transformation from '" + sourceSrsName + "' to '"
+						+ targetSrsName + "' available: " + e.getMessage());
+			}
+			final CoordinateTransformer existing = transformers.putIfAbsent(key, transformer);
+			if (existing != null) {
+				transformer = existing;
+			}
+		}
+		return transformer;
+	}
+
+	private static ICRS lookup(final String srsName) throws TransformationException {
+		final ICRS crs = CRSReferenceCache.lookup(srsName);
+		if (crs == null) {
+			throw new TransformationException("Unknown SRS '" + srsName + "'");
+		}
+		return crs;
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import com.github.davidmoten.rtree.RTree;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.noding.IntersectionAdder;
+import com.vividsolutions.jts.noding.MCIndexNoder;
+import com.vividsolutions.jts.noding.NodedSegmentString;
+import com.vividsolutions.jts.noding.SegmentString;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+import de.interactive_instruments.etf.bsxm.SpatialJoin.GeometryLoader;
+
+/**
+ * Checks if the polygonal geometries of the indexed features form a clean coverage, i.e. that they
+ * neither overlap nor leave gaps.
+ * <p>
+ * Overlaps are found with a self join of the spatial index on intersecting interiors. The location
+ * of an overlap is the polygonal part of the intersection of the two geometries.
+ * </p>
+ * <p>
+ * Gaps are found from the boundaries of the geometries: a boundary segment that is shared by two
+ * geometries lies inside the coverage. The remaining segments are noded and polygonized; a resulting
+ * face is a gap if its interior is not covered by any geometry. Holes of a polygon that are not
+ * filled by other geometries are gaps as well. Geometries that are not polygonal are ignored.
+ * </p>
+ */
+final class CoverageCheck {
+
+	static final String OVERLAP = "overlap";
+	static final String GAP = "gap";
+
+	// A feature is adjacent to a gap if their boundaries share a line
+	private static final String SHARED_BOUNDARY = "****1****";
+
+	/**
+	 * A coverage error, with the features that are involved and the location of the error
+	 */
+	static final class CoverageError {
+		final String type;
+		final List<IndexEntry> features;
+		final Geometry location;
+
+		private CoverageError(final String type, final List<IndexEntry> features, final Geometry location) {
+			this.type = type;
+			this.features = features;
+			this.location = location;
+		}
+	}
+
+	private static final class Segment {
+		private final double x0;
+		private final double y0;
+		private final double x1;
+		private final double y1;
+
+		private Segment(final Coordinate c0, final Coordinate c1) {
+			if (c0.compareTo(c1) <= 0) {
+				x0 = c0.x;
+				y0 = c0.y;
+				x1 = c1.x;
+				y1 = c1.y;
+			} else {
+				x0 = c1.x;
+				y0 = c1.y;
+				x1 = c0.x;
+				y1 = c0.y;
+			}
+		}
+
+		private Coordinate[] coordinates() {
+			return new Coordinate[]{new Coordinate(x0, y0), new Coordinate(x1, y1)};
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Segment)) {
+				return false;
+			}
+			final Segment other = (Segment) o;
+			return x0 == other.x0 && y0 == other.y0 && x1 == other.x1 && y1 == other.y1;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = Double.hashCode(x0);
+			hash = 31 * hash + Double.hashCode(y0);
+			hash = 31 * hash + Double.hashCode(x1);
+			return 31 * hash + Double.hashCode(y1);
+		}
+	}
+
+	private static final Comparator<CoverageError> GAP_ORDER = (e1, e2) -> {
+		final int c = Double.compare(e1.location.getEnvelopeInternal().getMinX(),
+				e2.location.getEnvelopeInternal().getMinX());
+		return c != 0 ? c
+				: Double.compare(e1.location.getEnvelopeInternal().getMinY(),
+						e2.location.getEnvelopeInternal().getMinY());
+	};
+
+	private final Job job;
+
+	/**
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	CoverageCheck(final Job job) {
+		this.job = job;
+	}
+
+	/**
+	 * Check the coverage formed by the features of an index
+	 *
+	 * @param index the spatial index
+	 * @param loader provides the geometries of the indexed features
+	 * @return the overlaps, ordered by the features, followed by the gaps, ordered by location
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	<S extends com.github.davidmoten.rtree.geometry.Geometry> List<CoverageError> check(
+			final RTree<IndexEntry, S> index, final GeometryLoader loader) throws QueryException {
+
+		// Load the geometries in the query thread
+		final Map<IndexEntry, Geometry> geometries = SpatialJoin.loadAll(index, loader, job);
+		final List<IndexEntry> polygonal = geometries.entrySet().stream()
+				.filter(e -> e.getValue() instanceof Polygonal && !e.getValue().isEmpty()).map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+
+		try {
+			final List<CoverageError> errors = new ArrayList<>(overlaps(index, geometries));
+			job.checkStop();
+			errors.addAll(gaps(polygonal, geometries));
+			return errors;
+		} catch (final TopologyException | IllegalArgumentException e) {
+			// JTS rejects some geometries, e.g. collections, with an IllegalArgumentException
+			throw new QueryException(e);
+		}
+	}
+
+	private <S extends com.github.davidmoten.rtree.geometry.Geometry> List<CoverageError> overlaps(
+			final RTree<IndexEntry, S> index, final Map<IndexEntry, Geometry> geometries) throws QueryException {
+		final SpatialJoin join = new SpatialJoin(SpatialJoin.Relationship.parse("2********"), job);
+		final List<IndexEntry[]> pairs = join.selfJoin(index, geometries::get);
+		job.checkStop();
+		return pairs.parallelStream().map(pair -> {
+			final Geometry intersection = geometries.get(pair[0]).intersection(geometries.get(pair[1]));
+			final List<IndexEntry> features = new ArrayList<>(2);
+			Collections.addAll(features, pair);
+			return new CoverageError(OVERLAP, features, polygonalPart(intersection));
+		}).collect(Collectors.toList());
+	}
+
+	private List<CoverageError> gaps(final List<IndexEntry> polygonal, final Map<IndexEntry, Geometry> geometries)
+			throws QueryException {
+		if (polygonal.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final GeometryFactory factory = geometries.get(polygonal.get(0)).getFactory();
+
+		// Boundary segments that are not shared by two geometries
+		final Map<Segment, Integer> counts = new ConcurrentHashMap<>();
+		polygonal.parallelStream().forEach(entry -> addSegments(geometries.get(entry).getBoundary(), counts));
+		final List<SegmentString> unmatched = new ArrayList<>();
+		counts.forEach((segment, count) -> {
+			if (count % 2 == 1) {
+				unmatched.add(new NodedSegmentString(segment.coordinates(), null));
+			}
+		});
+		counts.clear();
+		job.checkStop();
+
+		// Node the remaining segments, so that segments that only overlap partially are split at the
+		// shared parts, and drop the parts that are now shared
+		final MCIndexNoder noder = new MCIndexNoder(new IntersectionAdder(new RobustLineIntersector()));
+		noder.computeNodes(unmatched);
+		@SuppressWarnings("unchecked")
+		final Collection<SegmentString> noded = noder.getNodedSubstrings();
+		for (final SegmentString string : noded) {
+			final Coordinate[] coordinates = string.getCoordinates();
+			for (int i = 1; i < coordinates.length; i++) {
+				if (!coordinates[i - 1].equals2D(coordinates[i])) {
+					counts.merge(new Segment(coordinates[i - 1], coordinates[i]), 1, Integer::sum);
+				}
+			}
+		}
+		final List<LineString> edges = new ArrayList<>();
+		counts.forEach((segment, count) -> {
+			if (count % 2 == 1) {
+				edges.add(factory.createLineString(segment.coordinates()));
+			}
+		});
+		job.checkStop();
+
+		final Polygonizer polygonizer = new Polygonizer();
+		polygonizer.add(edges);
+		@SuppressWarnings("unchecked")
+		final List<Polygon> faces = new ArrayList<>(polygonizer.getPolygons());
+		job.checkStop();
+
+		// A face is a gap if it is not covered by the geometries
+		final STRtree tree = new STRtree();
+		for (final IndexEntry entry : polygonal) {
+			tree.insert(geometries.get(entry).getEnvelopeInternal(), entry);
+		}
+		tree.build();
+		final List<CoverageError> gaps = faces.parallelStream().map(face -> {
+			final Point interior = face.getInteriorPoint();
+			@SuppressWarnings("unchecked")
+			final List<IndexEntry> candidates = tree.query(interior.getEnvelopeInternal());
+			for (final IndexEntry candidate : candidates) {
+				if (geometries.get(candidate).intersects(interior)) {
+					return null;
+				}
+			}
+			@SuppressWarnings("unchecked")
+			final List<IndexEntry> neighbours = ((List<IndexEntry>) tree.query(face.getEnvelopeInternal()))
+					.stream().filter(candidate -> geometries.get(candidate).relate(face, SHARED_BOUNDARY))
+					.sorted(SpatialJoin.ENTRY_ORDER).collect(Collectors.toList());
+			return new CoverageError(GAP, neighbours, face);
+		}).filter(error -> error != null).collect(Collectors.toList());
+		Collections.sort(gaps, GAP_ORDER);
+		return gaps;
+	}
+
+	private static void addSegments(final Geometry boundary, final Map<Segment, Integer> counts) {
+		for (int n = 0; n < boundary.getNumGeometries(); n++) {
+			final Coordinate[] coordinates = boundary.getGeometryN(n).getCoordinates();
+			for (int i = 1; i < coordinates.length; i++) {
+				if (!coordinates[i - 1].equals2D(coordinates[i])) {
+					counts.merge(new Segment(coordinates[i - 1], coordinates[i]), 1, Integer::sum);
+				}
+			}
+		}
+	}
+
+	private static Geometry polygonalPart(final Geometry geometry) {
+		if (geometry instanceof Polygonal) {
+			return geometry;
+		}
+		final List<Geometry> polygons = new ArrayList<>();
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			if (geometry.getGeometryN(i) instanceof Polygonal) {
+				polygons.add(geometry.getGeometryN(i));
+			}
+		}
+		return geometry.getFactory().buildGeometry(polygons);
+	}
+}
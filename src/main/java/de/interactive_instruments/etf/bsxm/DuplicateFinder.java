@@ -0,0 +1,203 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+/**
+ * Finds features with duplicate geometries.
+ * <p>
+ * The fingerprint of each geometry is computed in parallel, see {@link GeometryFingerprint}. Without
+ * a tolerance, the geometries are grouped by the hash of their coordinates. With a tolerance, the
+ * coordinates of two duplicates may differ slightly, so that they can have different hashes. The
+ * geometries are then grouped by their shape and the lower left corner of their envelope, in a grid
+ * with twice the tolerance as cell size; the corners of two duplicates lie within the tolerance of
+ * each other, so at most four cells have to be probed. The candidates in a group are confirmed in
+ * parallel by comparing the normalized geometries vertex by vertex. Duplicates are merged into
+ * groups with a union-find structure.
+ * </p>
+ * <p>
+ * Normalization starts each ring at its smallest coordinate. If two vertices of a ring lie within the
+ * tolerance of each other, the duplicate of the ring may start at the other vertex and is then not
+ * found.
+ * </p>
+ */
+final class DuplicateFinder {
+
+	private final double tolerance;
+	private final Job job;
+
+	/**
+	 * @param tolerance the distance within which two coordinates are equal; 0 if they must be identical
+	 * @param job the query, checked for a timeout or interruption
+	 * @throws QueryException if the tolerance is negative
+	 */
+	DuplicateFinder(final double tolerance, final Job job) throws QueryException {
+		if (tolerance < 0 || Double.isNaN(tolerance)) {
+			throw new QueryException("The tolerance must not be negative, but was " + tolerance + ".");
+		}
+		this.tolerance = tolerance;
+		this.job = job;
+	}
+
+	/**
+	 * Find the duplicates among the geometries of the features. Empty geometries are ignored.
+	 *
+	 * @param geometries the geometries of the features
+	 * @return the groups of features with duplicate geometries; each group has at least two features,
+	 *         the features and the groups are ordered by feature
+	 * @throws QueryException if the query has been stopped
+	 */
+	List<List<IndexEntry>> find(final Map<IndexEntry, Geometry> geometries) throws QueryException {
+		final List<IndexEntry> features = new ArrayList<>(geometries.size());
+		for (final Map.Entry<IndexEntry, Geometry> feature : geometries.entrySet()) {
+			if (feature.getValue() != null && !feature.getValue().isEmpty()) {
+				features.add(feature.getKey());
+			}
+		}
+		Collections.sort(features, SpatialJoin.ENTRY_ORDER);
+
+		final List<GeometryFingerprint> fingerprints = features.parallelStream()
+				.map(feature -> GeometryFingerprint.of(geometries.get(feature))).collect(Collectors.toList());
+		job.checkStop();
+
+		final Map<Long, List<Integer>> groups = new HashMap<>();
+		for (int i = 0; i < fingerprints.size(); i++) {
+			groups.computeIfAbsent(key(fingerprints.get(i)), k -> new ArrayList<>(1)).add(i);
+		}
+		job.checkStop();
+
+		// The duplicates of each feature among the following features
+		final List<int[]> duplicates = IntStream.range(0, fingerprints.size()).parallel().mapToObj(i -> {
+			final GeometryFingerprint fingerprint = fingerprints.get(i);
+			final List<Integer> found = new ArrayList<>(0);
+			for (final long probe : probes(fingerprint)) {
+				final List<Integer> group = groups.get(probe);
+				if (group == null) {
+					continue;
+				}
+				for (final int j : group) {
+					if (j > i && fingerprint.equalsExact(fingerprints.get(j), tolerance)) {
+						found.add(j);
+					}
+				}
+			}
+			return found.stream().mapToInt(Integer::intValue).toArray();
+		}).collect(Collectors.toList());
+		job.checkStop();
+
+		final int[] parent = new int[features.size()];
+		for (int i = 0; i < parent.length; i++) {
+			parent[i] = i;
+		}
+		for (int i = 0; i < duplicates.size(); i++) {
+			for (final int j : duplicates.get(i)) {
+				union(parent, i, j);
+			}
+		}
+		final Map<Integer, List<IndexEntry>> components = new HashMap<>();
+		final List<List<IndexEntry>> ordered = new ArrayList<>();
+		for (int i = 0; i < parent.length; i++) {
+			final int root = find(parent, i);
+			if (root == i && duplicates.get(i).length == 0) {
+				// A feature without duplicates
+				continue;
+			}
+			components.computeIfAbsent(root, k -> {
+				final List<IndexEntry> component = new ArrayList<>(2);
+				ordered.add(component);
+				return component;
+			}).add(features.get(i));
+		}
+		return ordered;
+	}
+
+	private long key(final GeometryFingerprint fingerprint) {
+		if (tolerance == 0) {
+			return fingerprint.coordinates;
+		}
+		final Envelope envelope = fingerprint.envelope;
+		return key(fingerprint.shape, cell(envelope.getMinX()), cell(envelope.getMinY()));
+	}
+
+	private long[] probes(final GeometryFingerprint fingerprint) {
+		if (tolerance == 0) {
+			return new long[]{fingerprint.coordinates};
+		}
+		final Envelope envelope = fingerprint.envelope;
+		final long[] xs = probeCells(envelope.getMinX());
+		final long[] ys = probeCells(envelope.getMinY());
+		final long[] probes = new long[xs.length * ys.length];
+		int n = 0;
+		for (final long x : xs) {
+			for (final long y : ys) {
+				probes[n++] = key(fingerprint.shape, x, y);
+			}
+		}
+		return probes;
+	}
+
+	/**
+	 * @return the cells that contain a value within the tolerance of the given value
+	 */
+	private long[] probeCells(final double value) {
+		final long low = cell(value - tolerance);
+		final long high = cell(value + tolerance);
+		return low == high ? new long[]{low} : new long[]{low, high};
+	}
+
+	private long cell(final double value) {
+		return (long) Math.floor(value / (2 * tolerance));
+	}
+
+	private static long key(final long shape, final long x, final long y) {
+		return (shape * 31 + x) * 31 + y;
+	}
+
+	private static int find(final int[] parent, int node) {
+		while (parent[node] != node) {
+			// Path halving
+			parent[node] = parent[parent[node]];
+			node = parent[node];
+		}
+		return node;
+	}
+
+	private static void union(final int[] parent, final int node1, final int node2) {
+		final int root1 = find(parent, node1);
+		final int root2 = find(parent, node2);
+		if (root1 != root2) {
+			// Attach to the older root, so that the representative of a group is its first feature
+			if (root1 < root2) {
+				parent[root2] = root1;
+			} else {
+				parent[root1] = root2;
+			}
+		}
+	}
+}
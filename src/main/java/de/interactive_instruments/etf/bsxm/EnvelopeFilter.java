@@ -0,0 +1,300 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import de.interactive_instruments.etf.bsxm.GmlGeoX.SpatialRelOp;
+
+/**
+ * Decides spatial relationships from the envelopes of the geometries where possible, and evaluates
+ * the JTS predicate only if the envelopes are not sufficient.
+ * <p>
+ * Geometries with disjoint envelopes cannot intersect, contain, be within, touch, overlap, cross or
+ * equal each other. A geometry can only contain another geometry if its envelope contains the other
+ * envelope, and two geometries can only be equal if their envelopes are equal. Two geometries can only
+ * be equal vertex by vertex within a tolerance if the bounds of their envelopes differ by at most the
+ * tolerance. Empty geometries are always passed to JTS.
+ * </p>
+ * <p>
+ * The filter counts the number of relationships that were decided from the envelopes and the number
+ * of full predicate evaluations.
+ * </p>
+ */
+final class EnvelopeFilter {
+
+	// Minimum number of geometries in the second collection, for which an STRtree is built, default is 64
+	public static final String ETF_ENVELOPEFILTER_INDEX_THRESHOLD = "etf.gmlgeox.envelopefilter.indexthreshold";
+
+	static final int INDEX_THRESHOLD = Integer
+			.valueOf(System.getProperty(ETF_ENVELOPEFILTER_INDEX_THRESHOLD, "64"));
+
+	private final AtomicLong envelopeDecisions = new AtomicLong();
+	private final AtomicLong predicateEvaluations = new AtomicLong();
+
+	/**
+	 * Determine the spatial relationship between two geometries
+	 *
+	 * @param geom1 the first geometry
+	 * @param geom2 the second geometry
+	 * @param op the spatial relationship operator
+	 * @return true if the relationship is satisfied, false otherwise
+	 */
+	boolean apply(final Geometry geom1, final Geometry geom2, final SpatialRelOp op) {
+		final Boolean decision = decide(geom1, geom2, op);
+		if (decision != null) {
+			return decision;
+		}
+		countPredicateEvaluation();
+		return applyPredicate(geom1, geom2, op);
+	}
+
+	/**
+	 * Decide the spatial relationship between two geometries from their envelopes
+	 *
+	 * @param geom1 the first geometry
+	 * @param geom2 the second geometry
+	 * @param op the spatial relationship operator
+	 * @return the result, or <code>null</code> if the predicate must be evaluated
+	 */
+	Boolean decide(final Geometry geom1, final Geometry geom2, final SpatialRelOp op) {
+		final Boolean decision = decide(geom1.getEnvelopeInternal(), geom2.getEnvelopeInternal(), op);
+		if (decision != null) {
+			envelopeDecisions.incrementAndGet();
+		}
+		return decision;
+	}
+
+	/**
+	 * Count a relationship that has been evaluated outside of the filter, after
+	 * {@link #decide(Geometry, Geometry, SpatialRelOp)} returned <code>null</code>
+	 */
+	void countPredicateEvaluation() {
+		predicateEvaluations.incrementAndGet();
+	}
+
+	/**
+	 * Determine whether the relationship between two collections of geometries is satisfied by all
+	 * pairs of geometries (matchAll) or by at least one pair.
+	 * <p>
+	 * If the second collection contains at least {@link #INDEX_THRESHOLD} geometries, an STRtree is
+	 * built over their envelopes, so that only the geometries whose envelopes intersect the envelope of
+	 * a geometry from the first collection need to be considered individually.
+	 * </p>
+	 *
+	 * @param gc1 the geometries of the first collection
+	 * @param gc2 the geometries of the second collection
+	 * @param op the spatial relationship operator
+	 * @param matchAll true if all pairs must satisfy the relationship, false if one pair is sufficient
+	 * @return the result of the match
+	 */
+	boolean apply(final List<Geometry> gc1, final List<Geometry> gc2, final SpatialRelOp op, final boolean matchAll) {
+		return match(gc1, gc2, (g1, g2) -> apply(g1, g2, op), 0, op == SpatialRelOp.ISDISJOINT, matchAll);
+	}
+
+	/**
+	 * Compare two geometries vertex by vertex, see {@link Geometry#equalsExact(Geometry, double)}. If the
+	 * bounds of the envelopes differ by more than the tolerance, the geometries cannot be equal.
+	 *
+	 * @param geom1 the first geometry
+	 * @param geom2 the second geometry
+	 * @param tolerance the distance within which two coordinates are equal
+	 * @param normalized true if the geometries shall be normalized before they are compared, so that the
+	 *        order of their components and the orientation and start point of their rings do not matter
+	 * @return true if both geometries have the same structure and their coordinates lie within the
+	 *         tolerance, false otherwise
+	 */
+	boolean equalsExact(final Geometry geom1, final Geometry geom2, final double tolerance,
+			final boolean normalized) {
+		final Envelope env1 = geom1.getEnvelopeInternal();
+		final Envelope env2 = geom2.getEnvelopeInternal();
+		if (!env1.isNull() && !env2.isNull() && (Math.abs(env1.getMinX() - env2.getMinX()) > tolerance
+				|| Math.abs(env1.getMinY() - env2.getMinY()) > tolerance
+				|| Math.abs(env1.getMaxX() - env2.getMaxX()) > tolerance
+				|| Math.abs(env1.getMaxY() - env2.getMaxY()) > tolerance)) {
+			envelopeDecisions.incrementAndGet();
+			return false;
+		}
+		countPredicateEvaluation();
+		return normalized ? geom1.norm().equalsExact(geom2.norm(), tolerance) : geom1.equalsExact(geom2, tolerance);
+	}
+
+	/**
+	 * Determine whether all pairs of geometries from two collections (matchAll) or at least one pair are
+	 * equal vertex by vertex, see {@link #equalsExact(Geometry, Geometry, double, boolean)}.
+	 * <p>
+	 * The geometries are normalized once, and large second collections are indexed as in
+	 * {@link #apply(List, List, SpatialRelOp, boolean)}, with the envelopes expanded by the tolerance.
+	 * </p>
+	 *
+	 * @param gc1 the geometries of the first collection
+	 * @param gc2 the geometries of the second collection
+	 * @param tolerance the distance within which two coordinates are equal
+	 * @param normalized true if the geometries shall be normalized before they are compared
+	 * @param matchAll true if all pairs must be equal, false if one pair is sufficient
+	 * @return the result of the match
+	 */
+	boolean equalsExact(final List<Geometry> gc1, final List<Geometry> gc2, final double tolerance,
+			final boolean normalized, final boolean matchAll) {
+		final List<Geometry> n1 = normalized ? normalize(gc1) : gc1;
+		final List<Geometry> n2 = normalized ? normalize(gc2) : gc2;
+		return match(n1, n2, (g1, g2) -> equalsExact(g1, g2, tolerance, false), tolerance, false, matchAll);
+	}
+
+	/**
+	 * @param predicate the test of a pair of geometries
+	 * @param expandBy the distance by which the envelopes of the first collection are expanded to find
+	 *        the candidates in the second collection
+	 * @param outsideResult the result of the predicate for a pair of geometries whose envelopes do not
+	 *        intersect
+	 */
+	private boolean match(final List<Geometry> gc1, final List<Geometry> gc2,
+			final BiPredicate<Geometry, Geometry> predicate, final double expandBy, final boolean outsideResult,
+			final boolean matchAll) {
+		if (gc2.size() >= INDEX_THRESHOLD && !containsEmpty(gc1) && !containsEmpty(gc2)) {
+			return matchIndexed(gc1, gc2, predicate, expandBy, outsideResult, matchAll);
+		}
+		for (final Geometry g1 : gc1) {
+			for (final Geometry g2 : gc2) {
+				final boolean result = predicate.test(g1, g2);
+				if (matchAll && !result) {
+					return false;
+				} else if (!matchAll && result) {
+					return true;
+				}
+			}
+		}
+		return matchAll;
+	}
+
+	private boolean matchIndexed(final List<Geometry> gc1, final List<Geometry> gc2,
+			final BiPredicate<Geometry, Geometry> predicate, final double expandBy, final boolean outsideResult,
+			final boolean matchAll) {
+		final STRtree tree = new STRtree();
+		for (final Geometry g2 : gc2) {
+			tree.insert(g2.getEnvelopeInternal(), g2);
+		}
+		for (final Geometry g1 : gc1) {
+			final Envelope envelope = new Envelope(g1.getEnvelopeInternal());
+			envelope.expandBy(expandBy);
+			@SuppressWarnings("unchecked")
+			final List<Geometry> candidates = tree.query(envelope);
+			final int outside = gc2.size() - candidates.size();
+			if (outside > 0) {
+				// The relationship of g1 to all geometries outside of the candidates is known
+				envelopeDecisions.addAndGet(outside);
+				if (matchAll && !outsideResult) {
+					return false;
+				} else if (!matchAll && outsideResult) {
+					return true;
+				}
+			}
+			for (final Geometry g2 : candidates) {
+				final boolean result = predicate.test(g1, g2);
+				if (matchAll && !result) {
+					return false;
+				} else if (!matchAll && result) {
+					return true;
+				}
+			}
+		}
+		return matchAll;
+	}
+
+	/**
+	 * @return number of relationships that have been decided from the envelopes
+	 */
+	long getEnvelopeDecisionCount() {
+		return envelopeDecisions.get();
+	}
+
+	/**
+	 * @return number of relationships for which the JTS predicate has been evaluated
+	 */
+	long getPredicateEvaluationCount() {
+		return predicateEvaluations.get();
+	}
+
+	/**
+	 * Decide the spatial relationship from the envelopes of two geometries
+	 *
+	 * @return the result, or <code>null</code> if the envelopes are not sufficient
+	 */
+	static Boolean decide(final Envelope env1, final Envelope env2, final SpatialRelOp op) {
+		if (env1.isNull() || env2.isNull()) {
+			return null;
+		}
+		switch (op) {
+		case ISDISJOINT:
+			return env1.intersects(env2) ? null : Boolean.TRUE;
+		case CONTAINS:
+			return env1.contains(env2) ? null : Boolean.FALSE;
+		case ISWITHIN:
+			return env2.contains(env1) ? null : Boolean.FALSE;
+		case EQUALS:
+			return env1.equals(env2) ? null : Boolean.FALSE;
+		default:
+			return env1.intersects(env2) ? null : Boolean.FALSE;
+		}
+	}
+
+	static boolean applyPredicate(final Geometry geom1, final Geometry geom2, final SpatialRelOp op) {
+		switch (op) {
+		case CONTAINS:
+			return geom1.contains(geom2);
+		case CROSSES:
+			return geom1.crosses(geom2);
+		case EQUALS:
+			return geom1.equals(geom2);
+		case INTERSECTS:
+			return geom1.intersects(geom2);
+		case ISDISJOINT:
+			return geom1.disjoint(geom2);
+		case ISWITHIN:
+			return geom1.within(geom2);
+		case OVERLAPS:
+			return geom1.overlaps(geom2);
+		case TOUCHES:
+			return geom1.touches(geom2);
+		default:
+			throw new IllegalArgumentException("Unknown spatial relationship operator: " + op.toString());
+		}
+	}
+
+	private static List<Geometry> normalize(final List<Geometry> geometries) {
+		final List<Geometry> normalized = new ArrayList<>(geometries.size());
+		for (final Geometry geometry : geometries) {
+			normalized.add(geometry.norm());
+		}
+		return normalized;
+	}
+
+	private static boolean containsEmpty(final List<Geometry> geometries) {
+		for (final Geometry geometry : geometries) {
+			if (geometry.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
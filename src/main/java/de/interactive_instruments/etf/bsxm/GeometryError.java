@@ -0,0 +1,128 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import org.basex.query.QueryException;
+import org.basex.query.value.Value;
+import org.basex.query.value.item.Item;
+import org.basex.query.value.item.Str;
+import org.basex.query.value.map.Map;
+import org.deegree.commons.xml.XMLParsingException;
+import org.deegree.cs.exceptions.UnknownCRSException;
+
+/**
+ * An error in the geometry of a feature, for example an unsupported geometry type or invalid GML.
+ * <p>
+ * Errors in geometries are caused by the data, not by the query, and are typically caught and
+ * reported for each feature. The stack trace of the error is therefore not recorded, which makes
+ * the error considerably cheaper to create when thousands of features are broken. The error is
+ * classified with a code, so that batch functions and the lenient mode can return it as a value.
+ * </p>
+ */
+final class GeometryError extends QueryException {
+
+	private static final long serialVersionUID = 3460186279738131307L;
+
+	static final String UNSUPPORTED_GEOMETRY_TYPE = "UnsupportedGeometryType";
+	static final String XML_PARSING = "XMLParsing";
+	static final String UNKNOWN_CRS = "UnknownCRS";
+	static final String INVALID_GEOMETRY = "InvalidGeometry";
+	static final String MISSING_ID = "MissingId";
+
+	// The keys and codes of the error values are shared by all errors
+	private static final Str CODE_KEY = Str.get("code");
+	private static final Str MESSAGE_KEY = Str.get("message");
+	private static final Str ID_KEY = Str.get("id");
+	private static final java.util.Map<String, Str> CODES = new java.util.HashMap<>();
+
+	static {
+		for (final String code : new String[]{UNSUPPORTED_GEOMETRY_TYPE, XML_PARSING, UNKNOWN_CRS,
+				INVALID_GEOMETRY, MISSING_ID}) {
+			CODES.put(code, Str.get(code));
+		}
+	}
+
+	final String code;
+
+	GeometryError(final String code, final String message) {
+		super(message);
+		this.code = code;
+	}
+
+	/**
+	 * Classify an exception that occurred while reading or processing a geometry
+	 *
+	 * @param e the exception
+	 * @return the exception itself if it is a geometry error, otherwise a new geometry error with the
+	 *         message of the exception
+	 */
+	static GeometryError of(final Throwable e) {
+		if (e instanceof GeometryError) {
+			return (GeometryError) e;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UnsupportedGeometryTypeException) {
+				return new GeometryError(UNSUPPORTED_GEOMETRY_TYPE, message(cause));
+			} else if (cause instanceof UnknownCRSException) {
+				return new GeometryError(UNKNOWN_CRS, message(cause));
+			} else if (cause instanceof XMLParsingException) {
+				return new GeometryError(XML_PARSING, message(cause));
+			}
+		}
+		return new GeometryError(INVALID_GEOMETRY, message(e));
+	}
+
+	/**
+	 * Check if a runtime exception is caused by the data: invalid GML, an unknown CRS, an
+	 * unsupported geometry type or an invalid geometry rejected by JTS
+	 *
+	 * @param e the exception
+	 * @return <code>true</code> if the exception can be classified as geometry error,
+	 *         <code>false</code> if it is not caused by the data and must not be hidden
+	 */
+	static boolean isDataError(final RuntimeException e) {
+		if (e instanceof IllegalArgumentException) {
+			return true;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UnsupportedGeometryTypeException || cause instanceof UnknownCRSException
+					|| cause instanceof XMLParsingException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String message(final Throwable e) {
+		return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+	}
+
+	/**
+	 * @param id the id of the feature with the error, may be <code>null</code>
+	 * @return the error as map with the entries 'code', 'message' and, if an id is given, 'id'
+	 * @throws QueryException if the map cannot be created
+	 */
+	Value toValue(final Item id) throws QueryException {
+		final Map map = Map.EMPTY.put(CODE_KEY, CODES.get(code), null).put(MESSAGE_KEY,
+				Str.get(getLocalizedMessage()), null);
+		return id != null ? map.put(ID_KEY, id, null) : map;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
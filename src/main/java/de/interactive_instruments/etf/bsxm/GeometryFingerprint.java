@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * A hash of a geometry that does not depend on the order of its components and rings.
+ * <p>
+ * The geometry is normalized first: the components of a collection are sorted, the shell of a polygon
+ * is oriented clockwise and its holes counter-clockwise, and each ring starts at its smallest
+ * coordinate. Two geometries that only differ in these respects therefore have the same fingerprint.
+ * The fingerprint consists of two hashes: the shape hash covers the geometry types and the number of
+ * components and coordinates, the coordinate hash additionally covers all coordinates, including z.
+ * Equal fingerprints indicate, but do not prove, equal geometries.
+ * </p>
+ */
+final class GeometryFingerprint {
+
+	private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	final Geometry normalized;
+	final Envelope envelope;
+	final long shape;
+	final long coordinates;
+
+	private long shapeHash;
+	private long coordinateHash;
+
+	private GeometryFingerprint(final Geometry normalized) {
+		this.normalized = normalized;
+		this.envelope = normalized.getEnvelopeInternal();
+		add(normalized);
+		this.shape = mix(shapeHash);
+		this.coordinates = mix(coordinateHash ^ shapeHash);
+	}
+
+	/**
+	 * Compute the fingerprint of a geometry
+	 *
+	 * @param geometry the geometry, which is not changed
+	 * @return the fingerprint, with a normalized copy of the geometry
+	 */
+	static GeometryFingerprint of(final Geometry geometry) {
+		return new GeometryFingerprint(geometry.norm());
+	}
+
+	/**
+	 * Compares the normalized geometries vertex by vertex
+	 *
+	 * @param other another fingerprint
+	 * @param tolerance the distance within which two coordinates are equal; 0 if they must be identical
+	 * @return <code>true</code> if both geometries have the same structure and their coordinates lie
+	 *         within the tolerance, otherwise <code>false</code>
+	 */
+	boolean equalsExact(final GeometryFingerprint other, final double tolerance) {
+		if (shape != other.shape || (tolerance == 0 && coordinates != other.coordinates)) {
+			return false;
+		}
+		return normalized.equalsExact(other.normalized, tolerance);
+	}
+
+	private void add(final Geometry geometry) {
+		addShape(geometry.getGeometryType().hashCode());
+		if (geometry instanceof GeometryCollection) {
+			addShape(geometry.getNumGeometries());
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				add(geometry.getGeometryN(i));
+			}
+		} else if (geometry instanceof Polygon) {
+			final Polygon polygon = (Polygon) geometry;
+			addShape(polygon.getNumInteriorRing());
+			add(polygon.getExteriorRing());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				add(polygon.getInteriorRingN(i));
+			}
+		} else {
+			final Coordinate[] coordinates = geometry.getCoordinates();
+			addShape(coordinates.length);
+			for (final Coordinate c : coordinates) {
+				addCoordinate(c.x);
+				addCoordinate(c.y);
+				addCoordinate(c.z);
+			}
+		}
+	}
+
+	private void addShape(final long value) {
+		shapeHash = shapeHash * MULTIPLIER + value;
+	}
+
+	private void addCoordinate(final double value) {
+		// Adding 0.0 turns -0.0 into 0.0, and doubleToLongBits collapses all NaN values
+		coordinateHash = coordinateHash * MULTIPLIER + Double.doubleToLongBits(value + 0.0);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, which spreads the bits of the hash
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe53a87d5L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
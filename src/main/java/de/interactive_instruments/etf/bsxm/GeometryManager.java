@@ -15,12 +15,30 @@
  */
 package de.interactive_instruments.etf.bsxm;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.davidmoten.rtree.Entries;
 import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.Leaf;
+import com.github.davidmoten.rtree.Node;
+import com.github.davidmoten.rtree.NonLeaf;
 import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Rectangle;
 import com.vividsolutions.jts.geom.Geometry;
 
+import org.basex.data.Data;
 import org.basex.query.QueryException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +49,13 @@ import rx.Observable;
  * The GeometryManager is a spatial index and an in-memory cache for JTS geometries that can be used
  * with the GmlGeoX module. The cache is filled during the indexing of the geometries and updated
  * when geometries are accessed using the {@link GmlGeoX#getGeometry(Object, Object)} function.
+ * <p>
+ * If no cache size is configured, the cache is sized from the available heap and weighs the geometries
+ * by their number of vertices. All geometry managers that are sized from the heap share one budget:
+ * each of them may use an equal share of the configured fraction of the heap. The cache shrinks to half of its maximum if the
+ * {@link MemoryPressureMonitor} reports that memory is scarce, and is restored to its maximum once
+ * the heap usage has dropped below the threshold again.
+ * </p>
  *
  *  @author Clemens Portele (portele <at> interactive-instruments <dot> de)
  */
@@ -44,26 +69,146 @@ class GeometryManager {
 	// Record hitcounts and misscounts as boolean
 	public static final String ETF_GEOCACHE_REC_STATS = "etf.gmlgeox.geocache.statistics";
 
+	// Fraction of the max heap used for the cache, if no cache size is set, as number. Default is 0.25
+	public static final String ETF_GEOCACHE_HEAP_FRACTION = "etf.gmlgeox.geocache.heapfraction";
+
+	// Geometries with fewer vertices are not cached, as number. Default is 0 (cache all geometries)
+	public static final String ETF_GEOCACHE_MIN_VERTICES = "etf.gmlgeox.geocache.admission.minvertices";
+
+	// Geometries with at least this number of vertices are always cached, also if memory is scarce, as number
+	public static final String ETF_GEOCACHE_ALWAYS_VERTICES = "etf.gmlgeox.geocache.admission.alwaysvertices";
+
+	// Rough estimation of the memory required for one cached vertex (JTS Coordinate and array reference)
+	private static final int BYTES_PER_VERTEX = 64;
+
+	// The cache is never sized or shrunk below this weight or number of entries
+	private static final long MIN_CACHE_MAXIMUM = 10000;
+
+	// Number of index buffers, a power of two
+	private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
 	private final Cache<String, Geometry> geometryCache;
-	private RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> rtree;
+	private volatile RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> rtree;
+	// Entries that have been indexed but not yet merged into the r-tree, striped by thread
+	private final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>>[] buffers;
+	private final AtomicInteger buffered = new AtomicInteger();
+	// Number of entries below each node of the current r-tree, computed on demand
+	private final Map<Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>, Integer> subtreeCounts = new IdentityHashMap<>();
+	// Bounding boxes of the indexed nodes by database name and pre value, computed on demand
+	private Map<String, Map<Integer, Rectangle>> envelopes = null;
+	// Modification stamps of the indexed databases at the time they were indexed
+	private final Map<String, Long> databaseStamps = new ConcurrentHashMap<>();
+	// Modification stamps of the indexed documents that are not stored in a database, by identity
+	private final Map<Data, Long> documentStamps = Collections.synchronizedMap(new IdentityHashMap<>());
+	private final int minVertices;
+	private final int alwaysVertices;
+	private final AtomicLong rejectedCount = new AtomicLong();
+	// Reports if the heap usage still exceeds the threshold after the last garbage collection
+	private final BooleanSupplier memoryScarce;
+	// Maximum weight or number of entries of the cache while memory is not scarce
+	private volatile long cacheMaximum;
+	// Set while the cache is shrunk because memory is scarce
+	private final AtomicBoolean underPressure = new AtomicBoolean();
+	// Set if the cache is sized from the heap and takes a share of the heap budget
+	private final boolean heapSized;
 
 	GeometryManager() throws QueryException {
-		this(Integer.valueOf(System.getProperty(ETF_GEOCACHE_SIZE, "100000")));
+		this(System.getProperty(ETF_GEOCACHE_SIZE) != null ? Integer.valueOf(System.getProperty(ETF_GEOCACHE_SIZE))
+				: -1);
 	}
 
+	/**
+	 * Create a geometry manager
+	 *
+	 * @param maxSize
+	 *            maximum number of cached geometries. If the value is negative, the cache is sized from the
+	 *            available heap: the caches of all such geometry managers may then hold as many vertices as
+	 *            fit into the fraction of the heap configured with {@value #ETF_GEOCACHE_HEAP_FRACTION}, and
+	 *            each of them takes an equal share.
+	 * @throws QueryException if the cache could not be initialized
+	 */
 	GeometryManager(final int maxSize) throws QueryException {
+		this(maxSize, MemoryPressureMonitor.get()::isUnderPressure);
+	}
+
+	/**
+	 * Create a geometry manager
+	 *
+	 * @param maxSize
+	 *            maximum number of cached geometries, see {@link #GeometryManager(int)}
+	 * @param memoryScarce
+	 *            reports if memory is still scarce after the cache has been shrunk
+	 * @throws QueryException if the cache could not be initialized
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	GeometryManager(final int maxSize, final BooleanSupplier memoryScarce) throws QueryException {
+		this.memoryScarce = memoryScarce;
+		buffers = new List[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			buffers[i] = new ArrayList<>();
+		}
 		try {
+			minVertices = Integer.valueOf(System.getProperty(ETF_GEOCACHE_MIN_VERTICES, "0"));
+			alwaysVertices = Integer.valueOf(System.getProperty(ETF_GEOCACHE_ALWAYS_VERTICES, "1000"));
+			final Caffeine<Object, Object> builder = Caffeine.newBuilder();
 			if (logger.isDebugEnabled() ||
 					Boolean.valueOf(System.getProperty(ETF_GEOCACHE_REC_STATS, "false"))) {
-				geometryCache = Caffeine.newBuilder().recordStats().maximumSize(maxSize).build();
+				builder.recordStats();
+			}
+			heapSized = maxSize < 0;
+			if (!heapSized) {
+				cacheMaximum = maxSize;
+				geometryCache = builder.maximumSize(maxSize).build();
 			} else {
-				geometryCache = Caffeine.newBuilder().maximumSize(maxSize).build();
+				// The share is set when the manager is registered
+				cacheMaximum = heapBudget();
+				geometryCache = builder.maximumWeight(cacheMaximum)
+						.weigher((String id, Geometry geom) -> Math.max(1, geom.getNumPoints())).build();
 			}
 			rtree = RTree.star().create();
 		} catch (Exception e) {
 			throw new QueryException(
 					"Cache for geometries could not be initialized: " + e.getMessage());
 		}
+		MemoryPressureMonitor.get().register(this);
+		if (heapSized) {
+			shareHeapBudget();
+		}
+	}
+
+	/**
+	 * Returns the number of vertices that the caches of all geometry managers that are sized from the
+	 * heap may hold together
+	 *
+	 * @return the budget in vertices
+	 */
+	static long heapBudget() {
+		final double fraction = Double.valueOf(System.getProperty(ETF_GEOCACHE_HEAP_FRACTION, "0.25"));
+		return Math.max(MIN_CACHE_MAXIMUM, (long) (MemoryPressureMonitor.maxHeap() * fraction / BYTES_PER_VERTEX));
+	}
+
+	/**
+	 * Divides the heap budget equally among the registered geometry managers that are sized from the
+	 * heap. Managers that are no longer referenced keep their share until they have been garbage
+	 * collected.
+	 */
+	private static synchronized void shareHeapBudget() {
+		final List<GeometryManager> managers = new ArrayList<>();
+		for (final GeometryManager manager : MemoryPressureMonitor.get().managers()) {
+			if (manager.heapSized) {
+				managers.add(manager);
+			}
+		}
+		final long share = Math.max(MIN_CACHE_MAXIMUM, heapBudget() / Math.max(1, managers.size()));
+		logger.debug("Geometry caches sized from heap: {} caches with {} vertices each", managers.size(), share);
+		for (final GeometryManager manager : managers) {
+			manager.setCacheShare(share);
+		}
+	}
+
+	private void setCacheShare(final long share) {
+		cacheMaximum = share;
+		setCacheMaximum(underPressure.get() ? Math.min(share, Math.max(MIN_CACHE_MAXIMUM, share / 2)) : share);
 	}
 
 	/**
@@ -78,6 +223,16 @@ class GeometryManager {
 		return geometryCache.getIfPresent(id);
 	}
 
+	/**
+	 * Remove a feature geometry from the cache
+	 *
+	 * @param id
+	 *            the id of the geometry, typically a gml:id of a GML feature element
+	 */
+	public void invalidate(String id) {
+		geometryCache.invalidate(id);
+	}
+
 	/**
 	 * Returns the number of all read accesses to the cache
 	 *
@@ -105,26 +260,243 @@ class GeometryManager {
 	 *            the geometry to cache
 	 */
 	public void put(String id, com.vividsolutions.jts.geom.Geometry geom) {
-		geometryCache.put(id, geom);
+		if (admit(geom)) {
+			geometryCache.put(id, geom);
+		} else {
+			rejectedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Admission policy of the cache: simple geometries are cheaper to parse again than to keep
+	 * in memory, complex geometries are always cached. Geometries in between are not cached
+	 * while the cache is shrunk because memory is scarce.
+	 *
+	 * @param geom the geometry to cache
+	 * @return true if the geometry shall be cached, false otherwise
+	 */
+	private boolean admit(final com.vividsolutions.jts.geom.Geometry geom) {
+		if (underPressure.get() && !memoryScarce.getAsBoolean()) {
+			onMemoryRelief();
+		}
+		final int vertices = geom.getNumPoints();
+		if (vertices >= alwaysVertices) {
+			return true;
+		}
+		return vertices >= minVertices && !underPressure.get();
+	}
+
+	/**
+	 * Returns the number of geometries that have not been cached because of the admission policy
+	 *
+	 * @return number of rejected geometries
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Called by the {@link MemoryPressureMonitor} if the heap usage exceeds the threshold after a
+	 * garbage collection: halves the maximum size of the cache, but not below a minimum. The JVM
+	 * reports every garbage collection that ends above the threshold, the cache is only shrunk
+	 * once until the pressure has ended.
+	 */
+	void onMemoryPressure() {
+		if (underPressure.compareAndSet(false, true)) {
+			final long maximum = cacheMaximum;
+			setCacheMaximum(Math.min(maximum, Math.max(MIN_CACHE_MAXIMUM, maximum / 2)));
+			geometryCache.cleanUp();
+		}
+	}
+
+	/**
+	 * Restores the maximum size of the cache after the heap usage has dropped below the threshold.
+	 * This is checked when a geometry is put into the shrunk cache.
+	 */
+	private void onMemoryRelief() {
+		if (underPressure.compareAndSet(true, false)) {
+			setCacheMaximum(cacheMaximum);
+		}
+	}
+
+	private void setCacheMaximum(final long maximum) {
+		geometryCache.policy().eviction().ifPresent(eviction -> {
+			if (maximum != eviction.getMaximum()) {
+				logger.debug("Resizing geometry cache from {} to {}", eviction.getMaximum(), maximum);
+				eviction.setMaximum(maximum);
+			}
+		});
+	}
+
+	/**
+	 * Returns the current maximum of the cache, a weight in vertices if the cache is sized from the
+	 * heap, otherwise a number of geometries
+	 *
+	 * @return the maximum of the cache
+	 */
+	long getCacheMaximum() {
+		return geometryCache.policy().eviction().map(eviction -> eviction.getMaximum()).orElse(cacheMaximum);
 	}
 
 	/**
 	 * Index a geometry
+	 * <p>
+	 * The entry is added to a buffer of the calling thread and merged into the r-tree when the
+	 * index is accessed the next time, so that geometries can be indexed concurrently without a
+	 * global lock. The buffers are striped by thread; a stripe is only locked for the append.
+	 * </p>
 	 *
 	 * @param entry the index entry referencing the BaseX node
 	 * @param geometry the geometry to index
 	 */
 	public void index(IndexEntry entry, com.github.davidmoten.rtree.geometry.Geometry geometry) {
-		rtree = rtree.add(entry, geometry);
+		final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> buffer = buffers[(int) Thread
+				.currentThread().getId() & (STRIPES - 1)];
+		synchronized (buffer) {
+			buffer.add(Entries.entry(entry, geometry));
+		}
+		buffered.incrementAndGet();
 	}
 
 	/**
-	 * Report current size of the spatial index
+	 * Record the modification stamp of a database whose nodes are indexed. Only the first stamp
+	 * of a database is recorded, so that the index is stale if the database has been modified
+	 * while it was indexed.
+	 *
+	 * @param database the name of the database
+	 * @param stamp the modification stamp of the database
+	 */
+	void recordDatabaseStamp(final String database, final long stamp) {
+		databaseStamps.putIfAbsent(database, stamp);
+	}
+
+	/**
+	 * @return the modification stamps of the indexed databases, by database name
+	 */
+	Map<String, Long> databaseStamps() {
+		return Collections.unmodifiableMap(databaseStamps);
+	}
+
+	/**
+	 * Record the modification stamp of a document whose nodes are indexed, but that is not stored in
+	 * a database and therefore cannot be opened by name. Only the first stamp of a document is
+	 * recorded.
+	 *
+	 * @param document the data of the document
+	 * @param stamp the modification stamp of the document
+	 */
+	void recordDocumentStamp(final Data document, final long stamp) {
+		documentStamps.putIfAbsent(document, stamp);
+	}
+
+	/**
+	 * @return a copy of the modification stamps of the indexed documents that are not stored in a
+	 *         database
+	 */
+	Map<Data, Long> documentStamps() {
+		synchronized (documentStamps) {
+			final Map<Data, Long> copy = new IdentityHashMap<>(documentStamps.size() * 2);
+			copy.putAll(documentStamps);
+			return copy;
+		}
+	}
+
+	/**
+	 * Returns all entries of the spatial index
+	 *
+	 * @return the entries, in the order of the r-tree
+	 */
+	List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries() {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = rtree();
+		final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries = new ArrayList<>(
+				tree.size());
+		if (tree.root().isPresent()) {
+			collectEntries(tree.root().get(), entries);
+		}
+		return entries;
+	}
+
+	private static void collectEntries(final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> node,
+			final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries) {
+		if (node instanceof Leaf) {
+			entries.addAll(((Leaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node).entries());
+		} else {
+			for (final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> child : ((NonLeaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.children()) {
+				collectEntries(child, entries);
+			}
+		}
+	}
+
+	/**
+	 * Replace all entries of the spatial index. The r-tree is bulk loaded from the entries;
+	 * entries that are still buffered are merged into the new r-tree later.
+	 *
+	 * @param entries the new entries
+	 * @param stamps the modification stamps of the databases of the entries; the stamps of other
+	 *        databases remain unchanged
+	 * @param documents the modification stamps of the documents of the entries that are not stored in
+	 *        a database
+	 */
+	synchronized void replace(final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries,
+			final Map<String, Long> stamps, final Map<Data, Long> documents) {
+		rtree = entries.isEmpty() ? RTree.star().<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> create()
+				: RTree.star().<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> create(entries);
+		subtreeCounts.clear();
+		envelopes = null;
+		databaseStamps.putAll(stamps);
+		documentStamps.putAll(documents);
+	}
+
+	/**
+	 * Report current size of the spatial index, including the entries that have not yet
+	 * been merged into the r-tree
 	 *
 	 * @return  size of the spatial index
 	 */
 	public int indexSize() {
-		return rtree.size();
+		return rtree.size() + Math.max(0, buffered.get());
+	}
+
+	/**
+	 * Returns the current state of the spatial index. The r-tree is immutable, later
+	 * changes of the index are not visible in the returned tree.
+	 *
+	 * @return the r-tree
+	 */
+	RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> rtree() {
+		return buffered.get() > 0 ? merge() : rtree;
+	}
+
+	/**
+	 * Merge the buffered entries into the r-tree. If the r-tree is empty, it is bulk loaded
+	 * from the entries. Otherwise the entries are inserted in the order of a Hilbert curve, so
+	 * that neighbouring entries are inserted together.
+	 *
+	 * @return the r-tree with all merged entries
+	 */
+	private synchronized RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> merge() {
+		final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries = new ArrayList<>();
+		for (final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> buffer : buffers) {
+			synchronized (buffer) {
+				entries.addAll(buffer);
+				buffer.clear();
+			}
+		}
+		if (!entries.isEmpty()) {
+			buffered.addAndGet(-entries.size());
+			if (rtree.isEmpty()) {
+				rtree = RTree.star().<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> create(entries);
+			} else {
+				final HilbertCurve curve = new HilbertCurve(rtree.root().get().geometry().mbr());
+				entries.sort((e1, e2) -> Long.compare(curve.index(e1.geometry().mbr()),
+						curve.index(e2.geometry().mbr())));
+				rtree = rtree.add(entries);
+			}
+			subtreeCounts.clear();
+			envelopes = null;
+		}
+		return rtree;
 	}
 
 	/**
@@ -133,7 +505,7 @@ class GeometryManager {
 	 * @return  iterator over all entries
 	 */
 	public Iterable<IndexEntry> search() {
-		final Observable<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> results = rtree.entries();
+		final Observable<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> results = rtree().entries();
 		return results.map(entry -> entry.value()).toBlocking().toIterable();
 	}
 
@@ -144,7 +516,171 @@ class GeometryManager {
 	 * @return  iterator over all detected entries
 	 */
 	public Iterable<IndexEntry> search(com.github.davidmoten.rtree.geometry.Rectangle bbox) {
-		final Observable<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> results = rtree.search(bbox);
+		final Observable<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> results = rtree().search(bbox);
 		return results.map(entry -> entry.value()).toBlocking().toIterable();
 	}
+
+	/**
+	 * return all entries in the spatial index that are in the bounding box and whose height
+	 * interval overlaps with the height interval of the box; entries without height are always
+	 * returned if they are in the bounding box
+	 *
+	 * @param bbox the bounding box
+	 * @param minZ the minimum height
+	 * @param maxZ the maximum height
+	 * @return iterator over all detected entries
+	 */
+	public Iterable<IndexEntry> search(com.github.davidmoten.rtree.geometry.Rectangle bbox, double minZ,
+			double maxZ) {
+		final Observable<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> results = rtree().search(bbox);
+		return results.map(entry -> entry.value()).filter(entry -> entry.overlapsZ(minZ, maxZ)).toBlocking()
+				.toIterable();
+	}
+
+	/**
+	 * Count the entries in the spatial index that are in the bounding box, without
+	 * materializing them. Nodes that lie completely in the bounding box are counted
+	 * from the number of entries below them, which is computed once per node.
+	 *
+	 * @param bbox  the bounding box / rectangle
+	 * @return  number of entries in the bounding box
+	 */
+	public int count(Rectangle bbox) {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = rtree();
+		synchronized (this) {
+			return tree.root().isPresent() ? count(tree.root().get(), bbox) : 0;
+		}
+	}
+
+	/**
+	 * Check if the spatial index contains an entry in the bounding box
+	 *
+	 * @param bbox  the bounding box / rectangle
+	 * @return  true if at least one entry is in the bounding box
+	 */
+	public boolean exists(Rectangle bbox) {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = rtree();
+		return tree.root().isPresent() && exists(tree.root().get(), bbox);
+	}
+
+	/**
+	 * Returns the extent of the spatial index, with the single precision of the r-tree
+	 *
+	 * @return  the bounding rectangle of all entries, or <code>null</code> if the index is empty
+	 */
+	public Rectangle extent() {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = rtree();
+		return tree.root().isPresent() ? tree.root().get().geometry().mbr() : null;
+	}
+
+	/**
+	 * Returns the bounding box with which a node has been indexed
+	 *
+	 * @param dbname the name of the database of the node
+	 * @param pre the pre value of the node
+	 * @return the bounding box, or <code>null</code> if the node is not indexed
+	 */
+	public Rectangle envelope(final String dbname, final int pre) {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = rtree();
+		synchronized (this) {
+			if (envelopes == null) {
+				envelopes = new HashMap<>();
+				if (tree.root().isPresent()) {
+					collectEnvelopes(tree.root().get());
+				}
+			}
+			final Map<Integer, Rectangle> database = envelopes.get(dbname);
+			return database != null ? database.get(pre) : null;
+		}
+	}
+
+	private void collectEnvelopes(final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> node) {
+		if (node instanceof Leaf) {
+			for (final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry : ((Leaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.entries()) {
+				envelopes.computeIfAbsent(entry.value().dbname, k -> new HashMap<>()).putIfAbsent(entry.value().pre,
+						entry.geometry().mbr());
+			}
+		} else {
+			for (final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> child : ((NonLeaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.children()) {
+				collectEnvelopes(child);
+			}
+		}
+	}
+
+	private int count(final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> node,
+			final Rectangle bbox) {
+		final Rectangle mbr = node.geometry().mbr();
+		if (!mbr.intersects(bbox)) {
+			return 0;
+		} else if (contains(bbox, mbr)) {
+			return subtreeCount(node);
+		} else if (node instanceof Leaf) {
+			int count = 0;
+			for (final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry : ((Leaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.entries()) {
+				if (entry.geometry().intersects(bbox)) {
+					count++;
+				}
+			}
+			return count;
+		} else {
+			int count = 0;
+			for (final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> child : ((NonLeaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.children()) {
+				count += count(child, bbox);
+			}
+			return count;
+		}
+	}
+
+	private int subtreeCount(final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> node) {
+		if (node instanceof Leaf) {
+			return ((Leaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node).count();
+		}
+		final Integer cached = subtreeCounts.get(node);
+		if (cached != null) {
+			return cached;
+		}
+		int count = 0;
+		for (final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> child : ((NonLeaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+				.children()) {
+			count += subtreeCount(child);
+		}
+		subtreeCounts.put(node, count);
+		return count;
+	}
+
+	private static boolean exists(final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> node,
+			final Rectangle bbox) {
+		final Rectangle mbr = node.geometry().mbr();
+		if (!mbr.intersects(bbox)) {
+			return false;
+		} else if (contains(bbox, mbr)) {
+			// Nodes are never empty
+			return true;
+		} else if (node instanceof Leaf) {
+			for (final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry : ((Leaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.entries()) {
+				if (entry.geometry().intersects(bbox)) {
+					return true;
+				}
+			}
+			return false;
+		} else {
+			for (final Node<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> child : ((NonLeaf<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>) node)
+					.children()) {
+				if (exists(child, bbox)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static boolean contains(final Rectangle outer, final Rectangle inner) {
+		return outer.x1() <= inner.x1() && outer.y1() <= inner.y1() && outer.x2() >= inner.x2()
+				&& outer.y2() >= inner.y2();
+	}
 }
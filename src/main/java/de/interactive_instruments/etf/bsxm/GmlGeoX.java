@@ -22,8 +22,10 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -33,28 +35,40 @@ import nl.vrom.roo.validator.core.ValidatorContext;
 import nl.vrom.roo.validator.core.ValidatorMessage;
 import nl.vrom.roo.validator.core.dom4j.handlers.GeometryElementHandler;
 
+import com.github.davidmoten.rtree.Entries;
+import com.github.davidmoten.rtree.RTree;
 import com.github.davidmoten.rtree.geometry.Geometries;
 import com.google.common.base.Joiner;
+import com.vividsolutions.jts.geom.CoordinateFilter;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.util.GeometryExtracter;
 import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
 
-import org.apache.commons.io.FileUtils;
 import org.basex.api.dom.BXElem;
 import org.basex.api.dom.BXNode;
 import org.basex.core.Context;
+import org.basex.core.MainOptions;
+import org.basex.core.jobs.JobException;
 import org.basex.data.Data;
 import org.basex.query.QueryException;
 import org.basex.query.QueryModule;
 import org.basex.query.QueryProcessor;
 import org.basex.query.iter.BasicNodeIter;
 import org.basex.query.value.Value;
+import org.basex.query.value.ValueBuilder;
+import org.basex.query.value.array.Array;
+import org.basex.query.value.item.Dbl;
+import org.basex.query.value.item.Int;
+import org.basex.query.value.item.Item;
 import org.basex.query.value.item.Jav;
+import org.basex.query.value.item.QNm;
+import org.basex.query.value.item.Str;
 import org.basex.query.value.node.ANode;
 import org.basex.query.value.node.DBNode;
 import org.basex.query.value.seq.Empty;
+import org.basex.query.value.type.NodeType;
 import org.basex.util.InputInfo;
-import org.deegree.commons.xml.XMLParsingException;
+import org.basex.util.Token;
 import org.deegree.cs.CRSCodeType;
 import org.deegree.cs.persistence.CRSManager;
 import org.deegree.geometry.Geometry;
@@ -65,7 +79,6 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import de.interactive_instruments.IFile;
-import de.interactive_instruments.IoUtils;
 import de.interactive_instruments.properties.PropertyUtils;
 
 /**
@@ -94,7 +107,7 @@ public class GmlGeoX extends QueryModule {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(GmlGeoX.class);
 
-	private static final Pattern INTERSECTIONPATTERN = Pattern.compile("[0-2\\*TF]{9}");
+	static final Pattern INTERSECTIONPATTERN = Pattern.compile("[0-2\\*TF]{9}");
 
 	// Byte comparisons
 	private static final byte[] srsNameB = new String("srsName").getBytes();
@@ -103,13 +116,50 @@ public class GmlGeoX extends QueryModule {
 
 	private static final byte[] envelopeB = new String("Envelope").getBytes();
 
+	private static final byte[] idB = new String("id").getBytes();
+
+	private static final byte[] gml32NamespaceB = new String("http://www.opengis.net/gml/3.2").getBytes();
+
+	private static final byte[] gml31NamespaceB = new String("http://www.opengis.net/gml").getBytes();
+
 	protected final GmlGeoXUtils geoutils = new GmlGeoXUtils(this);
 
 	private final Set<String> gmlGeometries = new TreeSet<String>();
 
 	private static final boolean debug = LOGGER.isDebugEnabled();
 
-	private GeometryManager mgr = null;
+	private volatile GeometryManager mgr = null;
+
+	// Named spatial indexes, each with its own r-tree and geometry cache
+	private final Map<String, GeometryManager> namedIndexes = new ConcurrentHashMap<>();
+
+	private final EnvelopeFilter envelopeFilter = new EnvelopeFilter();
+
+	private final RelationMatrixCache relationMatrixCache = new RelationMatrixCache();
+
+	// In lenient mode, geometry errors of indexed features are recorded instead of raised
+	private volatile boolean lenient = false;
+
+	private final List<Value> indexErrors = Collections.synchronizedList(new ArrayList<Value>());
+
+	// Indexes whose databases have not been modified since they were indexed
+	private final Set<GeometryManager> currentIndexes = Collections
+			.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<GeometryManager, Boolean>()));
+
+	// Shared indexes that have been built by another query and are read-only
+	private final Set<GeometryManager> sharedIndexes = Collections
+			.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<GeometryManager, Boolean>()));
+
+	// Only converted to error values, never thrown
+	private static final GeometryError MISSING_ID = new GeometryError(GeometryError.MISSING_ID,
+			"The feature has no gml:id.");
+
+	// Memoized srsNames of database nodes: data -> pre of ancestor -> srsName
+	private final Map<Data, Map<Integer, String>> srsNameMemo = Collections.synchronizedMap(
+			new IdentityHashMap<Data, Map<Integer, String>>());
+
+	// Marks memoized nodes without srsName
+	private static final String NO_SRS_NAME = new String();
 
 	private int count = 0;
 	private int count2 = 0;
@@ -146,6 +196,15 @@ public class GmlGeoX extends QueryModule {
 		}
 	}
 
+	/**
+	 * Drops the cached CRS references and transformers, which are bound to the
+	 * previous configuration of the CRSManager.
+	 */
+	private static void crsConfigurationChanged() {
+		CRSReferenceCache.clear();
+		CoordinateTransformerCache.clear();
+	}
+
 	private void loadGmlGeoXSrsConfiguration() throws QueryException {
 		final String srsConfigDirPath = PropertyUtils.getenvOrProperty(ETF_GMLGEOX_SRSCONFIG_DIR, null);
 		final CRSManager crsMgr = new CRSManager();
@@ -157,6 +216,7 @@ public class GmlGeoX extends QueryModule {
 			try {
 				srsConfigDirectory.expectDirIsWritable();
 				crsMgr.init(srsConfigDirectory);
+				crsConfigurationChanged();
 			} catch (Exception e) {
 				throw new QueryException(
 						"Could not load SRS configuration files from directory referenced from GmlGeoX property '"
@@ -168,36 +228,17 @@ public class GmlGeoX extends QueryModule {
 				/*
 				 * We use the same folder each
 				 * time an instance of GmlGeoX is created. The configuration
-				 * files will not be deleted upon exit. That shouldn't be a
-				 * problem since we always use the same folder.
+				 * files will not be deleted upon exit. They are only extracted
+				 * again if they have been written by another GmlGeoX version
+				 * or if they have been modified.
 				 */
 				final String tempDirPath = System.getProperty("java.io.tmpdir");
 				final File tempDir = new File(tempDirPath, "gmlGeoXSrsConfig");
 
-				if (tempDir.exists()) {
-					FileUtils.deleteQuietly(tempDir);
-				}
-				tempDir.mkdirs();
-
-				IoUtils.copyResourceToFile(this, "/srsconfig/default.xml", new IFile(tempDir, "default.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/ntv2/beta2007.gsb",
-						new IFile(tempDir, "deegree/d3/config/ntv2/beta2007.gsb"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/parser-files.xml",
-						new IFile(tempDir, "deegree/d3/parser-files.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/crs-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/crs-definitions.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/datum-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/datum-definitions.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/ellipsoid-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/ellipsoid-definitions.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/pm-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/pm-definitions.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/projection-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/projection-definitions.xml"));
-				IoUtils.copyResourceToFile(this, "/srsconfig/deegree/d3/config/transformation-definitions.xml",
-						new IFile(tempDir, "deegree/d3/config/transformation-definitions.xml"));
+				SrsConfigurationExtractor.extract(tempDir);
 
 				crsMgr.init(tempDir);
+				crsConfigurationChanged();
 			} catch (IOException e) {
 				throw new QueryException(
 						"Exception occurred while extracting the SRS configuration files provided by GmlGeoX to a temporary "
@@ -231,6 +272,7 @@ public class GmlGeoX extends QueryModule {
 				Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
 				CRSManager crsMgr = new CRSManager();
 				crsMgr.init(configurationDirectory);
+				crsConfigurationChanged();
 			}
 
 		} catch (Exception e) {
@@ -778,6 +820,171 @@ public class GmlGeoX extends QueryModule {
 		return performSpatialRelationshipOperation(arg1, arg2, SpatialRelOp.EQUALS, matchAll);
 	}
 
+	/**
+	 * Tests if two geometries are equal vertex by vertex. Unlike
+	 * {@link #equals(Object, Object)}, which tests topological equality, both
+	 * geometries must have the same structure, and their coordinates must be
+	 * given in the same order; the coordinates may differ by up to the
+	 * tolerance. The test takes linear time in the number of coordinates, and
+	 * geometries whose envelopes differ by more than the tolerance are
+	 * rejected without comparing their coordinates.
+	 * <p>
+	 * See {{@link GmlGeoXUtils#toJTSGeometry(Geometry)} for a list of supported
+	 * and unsupported geometry types.
+	 *
+	 * @param arg1
+	 *            represents the first geometry, encoded as a GML geometry
+	 *            element
+	 * @param arg2
+	 *            represents the second geometry, encoded as a GML geometry
+	 *            element
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @return <code>true</code> if the first geometry equals the second one
+	 *         vertex by vertex, else <code>false</code>.
+	 * @throws QueryException
+	 *             if the tolerance is not a number or negative or a geometry
+	 *             could not be parsed
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public boolean equalsExact(Object arg1, Object arg2, Object tolerance) throws QueryException {
+
+		return performEqualsExact(arg1, arg2, toDouble(tolerance, "tolerance"), false);
+	}
+
+	/**
+	 * Tests if one geometry equals a list of geometries vertex by vertex, see
+	 * {@link #equalsExact(Object, Object, Object)}. Whether a match is required
+	 * for all or just one of these is controlled via parameter.
+	 *
+	 * @param arg1
+	 *            represents the first geometry, encoded as a GML geometry
+	 *            element
+	 * @param arg2
+	 *            represents a list of geometries, encoded as a GML geometry
+	 *            element
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @param matchAll
+	 *            <code>true</code> if arg1 must equal all geometries in arg2,
+	 *            else <code>false</code>
+	 * @return <code>true</code> if the conditions are met, else
+	 *         <code>false</code>. <code>false</code> will also be returned if
+	 *         arg2 is empty.
+	 * @throws QueryException
+	 *             if the tolerance is not a number or negative or a geometry
+	 *             could not be parsed
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public boolean equalsExact(Object arg1, Object arg2, Object tolerance, boolean matchAll) throws QueryException {
+
+		return performEqualsExact(arg1, arg2, toDouble(tolerance, "tolerance"), false, matchAll);
+	}
+
+	/**
+	 * Tests if two geometries are equal vertex by vertex after they have been
+	 * normalized, see {@link #equalsExact(Object, Object, Object)}. The order
+	 * of the components of a collection, the orientation of rings and the
+	 * start point of each ring do not matter.
+	 * <p>
+	 * See {{@link GmlGeoXUtils#toJTSGeometry(Geometry)} for a list of supported
+	 * and unsupported geometry types.
+	 *
+	 * @param arg1
+	 *            represents the first geometry, encoded as a GML geometry
+	 *            element
+	 * @param arg2
+	 *            represents the second geometry, encoded as a GML geometry
+	 *            element
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @return <code>true</code> if the normalized geometries are equal vertex
+	 *         by vertex, else <code>false</code>.
+	 * @throws QueryException
+	 *             if the tolerance is not a number or negative or a geometry
+	 *             could not be parsed
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public boolean equalsNorm(Object arg1, Object arg2, Object tolerance) throws QueryException {
+
+		return performEqualsExact(arg1, arg2, toDouble(tolerance, "tolerance"), true);
+	}
+
+	/**
+	 * Tests if one geometry equals a list of geometries vertex by vertex after
+	 * they have been normalized, see
+	 * {@link #equalsNorm(Object, Object, Object)}. Whether a match is required
+	 * for all or just one of these is controlled via parameter.
+	 *
+	 * @param arg1
+	 *            represents the first geometry, encoded as a GML geometry
+	 *            element
+	 * @param arg2
+	 *            represents a list of geometries, encoded as a GML geometry
+	 *            element
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @param matchAll
+	 *            <code>true</code> if arg1 must equal all geometries in arg2,
+	 *            else <code>false</code>
+	 * @return <code>true</code> if the conditions are met, else
+	 *         <code>false</code>. <code>false</code> will also be returned if
+	 *         arg2 is empty.
+	 * @throws QueryException
+	 *             if the tolerance is not a number or negative or a geometry
+	 *             could not be parsed
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public boolean equalsNorm(Object arg1, Object arg2, Object tolerance, boolean matchAll) throws QueryException {
+
+		return performEqualsExact(arg1, arg2, toDouble(tolerance, "tolerance"), true, matchAll);
+	}
+
+	private boolean performEqualsExact(Object arg1, Object arg2, double tolerance, boolean normalized)
+			throws QueryException {
+
+		checkTolerance(tolerance);
+		try {
+			com.vividsolutions.jts.geom.Geometry geom1 = geoutils.singleObjectToJTSGeometry(arg1);
+			com.vividsolutions.jts.geom.Geometry geom2 = geoutils.singleObjectToJTSGeometry(arg2);
+			return envelopeFilter.equalsExact(geom1, geom2, tolerance, normalized);
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	private boolean performEqualsExact(Object arg1, Object arg2, double tolerance, boolean normalized,
+			boolean matchAll) throws QueryException {
+
+		checkTolerance(tolerance);
+		try {
+			if (arg1 instanceof Empty || arg2 instanceof Empty) {
+				return false;
+			}
+			List<com.vividsolutions.jts.geom.Geometry> gc1 = geoutils
+					.toFlattenedJTSGeometryCollection(geoutils.toJTSGeometry(arg1));
+			List<com.vividsolutions.jts.geom.Geometry> gc2 = geoutils
+					.toFlattenedJTSGeometryCollection(geoutils.toJTSGeometry(arg2));
+			return envelopeFilter.equalsExact(gc1, gc2, tolerance, normalized, matchAll);
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	private static void checkTolerance(final double tolerance) throws QueryException {
+		if (tolerance < 0 || Double.isNaN(tolerance)) {
+			throw new QueryException("The tolerance must not be negative, but was " + tolerance + ".");
+		}
+	}
+
 	/**
 	 * Tests if the first geometry intersects the second geometry.
 	 * <p>
@@ -817,16 +1024,56 @@ public class GmlGeoX extends QueryModule {
 	@Requires(Permission.NONE)
 	@Deterministic
 	public String determineSrsName(final ANode geometryNode) {
-		String srsName = getSrsName(geometryNode);
-		if (srsName == null) {
-			// Check ancestors
-			for (ANode ancestor = geometryNode.ancestor().next(); ancestor != null; ancestor = ancestor.ancestor().next()) {
-				srsName = getSrsName(ancestor);
-				if (srsName != null) {
-					return srsName;
-				}
+		final String srsName = getSrsName(geometryNode);
+		if (srsName != null) {
+			return srsName;
+		}
+		// Check ancestors
+		final ANode parent = geometryNode.parent();
+		if (parent instanceof DBNode) {
+			return determineSrsNameOfDbAncestors((DBNode) parent);
+		}
+		for (ANode ancestor = parent; ancestor != null; ancestor = ancestor.parent()) {
+			final String ancestorSrsName = getSrsName(ancestor);
+			if (ancestorSrsName != null) {
+				return ancestorSrsName;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determines the srsName that applies to the given database node, either
+	 * defined by the node itself or by one of its ancestors. The result is
+	 * memoized for the node and all ancestors that have been visited, so that
+	 * sibling features in one collection share the lookup.
+	 */
+	private String determineSrsNameOfDbAncestors(final DBNode node) {
+		final Map<Integer, String> memo = srsNameMemo.computeIfAbsent(node.data(),
+				data -> new ConcurrentHashMap<>());
+		final List<Integer> visited = new ArrayList<>();
+		String srsName = null;
+		for (ANode ancestor = node; ancestor != null; ancestor = ancestor.parent()) {
+			if (!(ancestor instanceof DBNode)) {
+				srsName = determineSrsName(ancestor);
+				break;
+			}
+			final Integer pre = ((DBNode) ancestor).pre();
+			final String memoized = memo.get(pre);
+			if (memoized != null) {
+				srsName = memoized == NO_SRS_NAME ? null : memoized;
+				break;
+			}
+			visited.add(pre);
+			srsName = getSrsName(ancestor);
+			if (srsName != null) {
+				break;
 			}
 		}
+		final String memoValue = srsName == null ? NO_SRS_NAME : srsName;
+		for (final Integer pre : visited) {
+			memo.put(pre, memoValue);
+		}
 		return srsName;
 	}
 
@@ -888,10 +1135,26 @@ public class GmlGeoX extends QueryModule {
 			 * semantics for cases in which one or both arguments is a
 			 * collection of items.
 			 */
+			final RelationMatrixCache.Relation cached = relationMatrixCache.get(arg1, arg2);
+			if (cached != null) {
+				return cached.satisfies(op);
+			}
+
 			geom1 = geoutils.singleObjectToJTSGeometry(arg1);
 			geom2 = geoutils.singleObjectToJTSGeometry(arg2);
 
-			return applySpatialRelationshipOperator(geom1, geom2, op);
+			if (!relationMatrixCache.isRepeated(arg1, arg2)) {
+				// Most pairs are only tested once, the predicate is cheaper than the full intersection matrix
+				return applySpatialRelationshipOperator(geom1, geom2, op);
+			}
+			final Boolean decision = envelopeFilter.decide(geom1, geom2, op);
+			if (decision != null) {
+				return decision;
+			}
+			// The pair is tested again: compute the full intersection matrix once, further operators on
+			// the same pair will use it
+			envelopeFilter.countPredicateEvaluation();
+			return relationMatrixCache.relate(arg1, arg2, geom1, geom2).satisfies(op);
 
 		} catch (
 
@@ -902,27 +1165,7 @@ public class GmlGeoX extends QueryModule {
 
 	private boolean applySpatialRelationshipOperator(com.vividsolutions.jts.geom.Geometry geom1,
 			com.vividsolutions.jts.geom.Geometry geom2, SpatialRelOp op) {
-
-		switch (op) {
-		case CONTAINS:
-			return geom1.contains(geom2);
-		case CROSSES:
-			return geom1.crosses(geom2);
-		case EQUALS:
-			return geom1.equals(geom2);
-		case INTERSECTS:
-			return geom1.intersects(geom2);
-		case ISDISJOINT:
-			return geom1.disjoint(geom2);
-		case ISWITHIN:
-			return geom1.within(geom2);
-		case OVERLAPS:
-			return geom1.overlaps(geom2);
-		case TOUCHES:
-			return geom1.touches(geom2);
-		default:
-			throw new IllegalArgumentException("Unknown spatial relationship operator: " + op.toString());
-		}
+		return envelopeFilter.apply(geom1, geom2, op);
 	}
 
 	private boolean performSpatialRelationshipOperation(Object arg1, Object arg2, SpatialRelOp op, boolean matchAll)
@@ -946,42 +1189,7 @@ public class GmlGeoX extends QueryModule {
 				gc1 = geoutils.toFlattenedJTSGeometryCollection(geom1);
 				gc2 = geoutils.toFlattenedJTSGeometryCollection(geom2);
 
-				boolean allMatch = true;
-
-				outer: for (com.vividsolutions.jts.geom.Geometry g1 : gc1) {
-					for (com.vividsolutions.jts.geom.Geometry g2 : gc2) {
-
-						if (matchAll) {
-
-							if (applySpatialRelationshipOperator(g1, g2, op)) {
-								/*
-								 * check the next geometry pair to see if it
-								 * also satisfies the spatial relationship
-								 */
-							} else {
-								allMatch = false;
-								break outer;
-							}
-
-						} else {
-
-							if (applySpatialRelationshipOperator(g1, g2, op)) {
-								return true;
-							} else {
-								/*
-								 * check the next geometry pair to see if it
-								 * satisfies the spatial relationship
-								 */
-							}
-						}
-					}
-				}
-
-				if (matchAll) {
-					return allMatch;
-				} else {
-					return false;
-				}
+				return envelopeFilter.apply(gc1, gc2, op, matchAll);
 			}
 
 		} catch (Exception e) {
@@ -1309,6 +1517,15 @@ public class GmlGeoX extends QueryModule {
 			List<com.vividsolutions.jts.geom.Geometry> geoms = new ArrayList<com.vividsolutions.jts.geom.Geometry>();
 
 			com.vividsolutions.jts.geom.Geometry geom = geoutils.toJTSGeometry(arg);
+
+			if (geom.getNumGeometries() >= ParallelUnion.PARALLEL_THRESHOLD) {
+				// Large sets of geometries are partitioned spatially and unioned in parallel
+				for (int i = 0; i < geom.getNumGeometries(); i++) {
+					geoms.add(geom.getGeometryN(i));
+				}
+				return new ParallelUnion(queryContext).union(geoms, geom.getFactory());
+			}
+
 			geoms.add(geom);
 
 			com.vividsolutions.jts.geom.GeometryCollection gc = geoutils.toJTSGeometryCollection(geoms, true);
@@ -1320,6 +1537,53 @@ public class GmlGeoX extends QueryModule {
 		}
 	}
 
+	/**
+	 * Computes the union of the geometries of all indexed features.
+	 * <p>
+	 * The spatial index is used to partition the geometries: the geometries
+	 * in each leaf of the r-tree are unioned, and the results are merged along
+	 * the tree. Partitions are processed in parallel. The geometries are taken
+	 * from the geometry cache, or parsed again from the indexed geometry
+	 * nodes.
+	 *
+	 * @return the union of all indexed geometries; an empty geometry if the
+	 *         index is empty
+	 * @throws QueryException
+	 *             if a geometry could not be loaded, the union failed or the
+	 *             query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public com.vividsolutions.jts.geom.Geometry unionIndexed() throws QueryException {
+		return unionOfIndex(defaultIndex());
+	}
+
+	/**
+	 * Computes the union of the geometries of all features of a named index,
+	 * see {@link #unionIndexed()}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return the union of all geometries of the index; an empty geometry if
+	 *         the index is empty
+	 * @throws QueryException
+	 *             if a geometry could not be loaded, the union failed or the
+	 *             query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public com.vividsolutions.jts.geom.Geometry unionIndexed(final String indexName) throws QueryException {
+		return unionOfIndex(namedIndex(indexName));
+	}
+
+	private com.vividsolutions.jts.geom.Geometry unionOfIndex(final GeometryManager index) throws QueryException {
+		final RTree<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> tree = index.rtree();
+		// Geometries are loaded in the query thread, the union tasks must not access the database
+		final Map<IndexEntry, com.vividsolutions.jts.geom.Geometry> geometries = SpatialJoin.loadAll(tree,
+				loader(index), queryContext);
+		final com.vividsolutions.jts.geom.Geometry union = new ParallelUnion(queryContext).union(tree,
+				geometries::get);
+		return union != null ? union : geoutils.emptyJTSGeometry();
+	}
+
 	@Requires(Permission.NONE)
 	@Deterministic
 	public boolean isEmpty(com.vividsolutions.jts.geom.Geometry geom) {
@@ -1576,11 +1840,53 @@ public class GmlGeoX extends QueryModule {
 			 * semantics for cases in which one or both arguments is a
 			 * collection of items.
 			 */
+			final RelationMatrixCache.Relation cached = relationMatrixCache.get(arg1, arg2);
+			if (cached != null) {
+				return cached.matrix.matches(intersectionPattern);
+			}
+
 			geom1 = geoutils.singleObjectToJTSGeometry(arg1);
 			geom2 = geoutils.singleObjectToJTSGeometry(arg2);
 
-			return geom1.relate(geom2, intersectionPattern);
+			return relationMatrixCache.relate(arg1, arg2, geom1, geom2).matrix.matches(intersectionPattern);
+
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
 
+	/**
+	 * Computes the DE-9IM intersection matrix of two geometries.
+	 * <p>
+	 * The matrix is cached for a pair of database nodes. Spatial relationship
+	 * operators and {@link #relate(Object, Object, String)} that are
+	 * subsequently called on the same pair (in any order) are answered from
+	 * the cached matrix.
+	 * <p>
+	 * See {{@link GmlGeoXUtils#toJTSGeometry(Geometry)} for a list of supported
+	 * and unsupported geometry types.
+	 *
+	 * @param arg1
+	 *            represents the first geometry, encoded as a GML geometry
+	 *            element or a JTS geometry
+	 * @param arg2
+	 *            represents the second geometry, encoded as a GML geometry
+	 *            element or a JTS geometry
+	 * @return the intersection matrix as string of nine characters
+	 *         (IxI,IxB,IxE,BxI,BxB,BxE,ExI,ExB,ExE), for example '212101212'
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public String relationMatrix(Object arg1, Object arg2) throws QueryException {
+		try {
+			final RelationMatrixCache.Relation cached = relationMatrixCache.get(arg1, arg2);
+			if (cached != null) {
+				return cached.matrix.toString();
+			}
+			final com.vividsolutions.jts.geom.Geometry geom1 = geoutils.singleObjectToJTSGeometry(arg1);
+			final com.vividsolutions.jts.geom.Geometry geom2 = geoutils.singleObjectToJTSGeometry(arg2);
+			return relationMatrixCache.relate(arg1, arg2, geom1, geom2).matrix.toString();
 		} catch (Exception e) {
 			throw new QueryException(e);
 		}
@@ -1689,7 +1995,6 @@ public class GmlGeoX extends QueryModule {
 						"intersectionPattern does not match the regular expression, which is: [0-2\\\\*TF]{9}");
 			}
 		}
-
 	}
 
 	/**
@@ -1756,116 +2061,1701 @@ public class GmlGeoX extends QueryModule {
 
 	}
 
+	/**
+	 * Transforms a geometry to another coordinate reference system.
+	 * <p>
+	 * The source SRS is the one that applies to the geometry node, see
+	 * {@link #determineSrsName(ANode)}. See
+	 * {@link GmlGeoXUtils#toJTSGeometry(Geometry)} for a list of supported
+	 * and unsupported geometry types.
+	 *
+	 * @param geometry
+	 *            represents the geometry, a GML geometry node
+	 * @param targetSrsName
+	 *            srsName of the target SRS
+	 * @return the transformed geometry
+	 * @throws QueryException
+	 *             if the source SRS cannot be determined, if the source or
+	 *             target SRS is unknown, or if the transformation failed
+	 */
 	@Requires(Permission.NONE)
 	@Deterministic
-	public int pre(Object entry) {
-		if (entry instanceof IndexEntry)
-			return ((IndexEntry) entry).pre;
-
-		return -1;
-	}
-
-	@Requires(Permission.NONE)
-	@Deterministic
-	public String dbname(Object entry) {
-		if (entry instanceof IndexEntry)
-			return ((IndexEntry) entry).dbname;
-
-		return null;
+	public com.vividsolutions.jts.geom.Geometry transform(final Object geometry, final String targetSrsName)
+			throws QueryException {
+		if (!(geometry instanceof ANode)) {
+			throw new QueryException(
+					"The SRS of the geometry cannot be determined, the source SRS must be given explicitly.");
+		}
+		return transform(geometry, determineSrsNameOrFail((ANode) geometry), targetSrsName);
 	}
 
 	/**
-	 * Searches the spatial r-tree index for items in the envelope.
+	 * Transforms a geometry from the given source to the given target
+	 * coordinate reference system.
+	 * <p>
+	 * See {@link GmlGeoXUtils#toJTSGeometry(Geometry)} for a list of supported
+	 * and unsupported geometry types.
 	 *
-	 * @param minx
-	 *            represents the minimum value on the first coordinate axis; a
-	 *            number
-	 * @param miny
-	 *            represents the minimum value on the second coordinate axis; a
-	 *            number
-	 * @param maxx
-	 *            represents the maximum value on the first coordinate axis; a
-	 *            number
-	 * @param maxy
-	 *            represents the maximum value on the second coordinate axis; a
-	 *            number
-	 * @return the node set of all items in the envelope
+	 * @param geometry
+	 *            represents the geometry, a GML geometry node or a JTS
+	 *            geometry
+	 * @param sourceSrsName
+	 *            srsName of the SRS of the geometry
+	 * @param targetSrsName
+	 *            srsName of the target SRS
+	 * @return the transformed geometry
 	 * @throws QueryException
+	 *             if the source or target SRS is unknown, or if the
+	 *             transformation failed
 	 */
 	@Requires(Permission.NONE)
 	@Deterministic
-	public Object[] search(Object minx, Object miny, Object maxx, Object maxy) throws QueryException {
+	public com.vividsolutions.jts.geom.Geometry transform(final Object geometry, final String sourceSrsName,
+			final String targetSrsName) throws QueryException {
+		try {
+			if (geometry instanceof Empty) {
+				return geoutils.emptyJTSGeometry();
+			}
+			final com.vividsolutions.jts.geom.Geometry geom = geoutils.toJTSGeometry(geometry);
+			return CoordinateTransformerCache.transform(Collections.singletonList(geom), sourceSrsName,
+					targetSrsName).get(0);
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Transforms a sequence of geometries to another coordinate reference
+	 * system.
+	 * <p>
+	 * The source SRS of each geometry is the one that applies to the geometry
+	 * node, see {@link #determineSrsName(ANode)}. The coordinates of all
+	 * geometries with the same source SRS are transformed in one batch, which
+	 * is considerably faster than transforming the geometries one by one.
+	 *
+	 * @param geometries
+	 *            GML geometry nodes
+	 * @param targetSrsName
+	 *            srsName of the target SRS
+	 * @return the transformed geometries, in the order of the given
+	 *         geometries
+	 * @throws QueryException
+	 *             if the SRS of a geometry cannot be determined, if a source
+	 *             or the target SRS is unknown, or if a transformation failed
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] transformAll(final Value geometries, final String targetSrsName) throws QueryException {
+		try {
+			final int size = (int) geometries.size();
+			final Map<String, List<Integer>> positionsBySrsName = new LinkedHashMap<>();
+			final List<com.vividsolutions.jts.geom.Geometry> geoms = new ArrayList<>(size);
+			for (final Item item : geometries) {
+				if (!(item instanceof ANode)) {
+					throw new QueryException("Only GML geometry nodes can be transformed without explicit source SRS.");
+				}
+				final String srsName = determineSrsNameOrFail((ANode) item);
+				positionsBySrsName.computeIfAbsent(srsName, k -> new ArrayList<>()).add(geoms.size());
+				geoms.add(geoutils.toJTSGeometry((ANode) item));
+			}
+			final Object[] result = new Object[size];
+			for (final Map.Entry<String, List<Integer>> group : positionsBySrsName.entrySet()) {
+				final List<com.vividsolutions.jts.geom.Geometry> sources = new ArrayList<>(group.getValue().size());
+				for (final Integer position : group.getValue()) {
+					sources.add(geoms.get(position));
+				}
+				final List<com.vividsolutions.jts.geom.Geometry> transformed = CoordinateTransformerCache
+						.transform(sources, group.getKey(), targetSrsName);
+				for (int i = 0; i < transformed.size(); i++) {
+					result[group.getValue().get(i)] = transformed.get(i);
+				}
+			}
+			return result;
+		} catch (QueryException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	private String determineSrsNameOrFail(final ANode geometryNode) throws QueryException {
+		final String srsName = determineSrsName(geometryNode);
+		if (srsName == null) {
+			throw new QueryException("No srsName applies to the geometry node, the source SRS cannot be determined.");
+		}
+		return srsName;
+	}
+
+	/**
+	 * Reports how many spatial relationships have been decided by comparing
+	 * the envelopes of the geometries and how many required the evaluation of
+	 * the full spatial predicate, since this module instance has been created.
+	 *
+	 * @return a map with the keys 'envelopeDecisions' and
+	 *         'predicateEvaluations'
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public Value envelopeFilterStatistics() throws QueryException {
+		return org.basex.query.value.map.Map.EMPTY
+				.put(Str.get("envelopeDecisions"), Int.get(envelopeFilter.getEnvelopeDecisionCount()), null)
+				.put(Str.get("predicateEvaluations"), Int.get(envelopeFilter.getPredicateEvaluationCount()), null);
+	}
+
+	@Requires(Permission.NONE)
+	@Deterministic
+	public int pre(Object entry) {
+		if (entry instanceof IndexEntry)
+			return ((IndexEntry) entry).pre;
+
+		return -1;
+	}
+
+	@Requires(Permission.NONE)
+	@Deterministic
+	public String dbname(Object entry) {
+		if (entry instanceof IndexEntry)
+			return ((IndexEntry) entry).dbname;
+
+		return null;
+	}
+
+	/**
+	 * Searches the spatial r-tree index for items in the envelope.
+	 *
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the node set of all items in the envelope
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] search(Object minx, Object miny, Object maxx, Object maxy) throws QueryException {
+
+		try {
+			double x1;
+			double x2;
+			double y1;
+			double y2;
+			if (minx instanceof Number)
+				x1 = ((Number) minx).doubleValue();
+			else
+				x1 = 0.0;
+			if (miny instanceof Number)
+				y1 = ((Number) miny).doubleValue();
+			else
+				y1 = 0.0;
+			if (maxx instanceof Number)
+				x2 = ((Number) maxx).doubleValue();
+			else
+				x2 = 0.0;
+			if (maxy instanceof Number)
+				y2 = ((Number) maxy).doubleValue();
+			else
+				y2 = 0.0;
+
+			Iterable<IndexEntry> iter = defaultIndex().search(Geometries.rectangle(x1, y1, x2, y2));
+			List<DBNode> nodelist = new ArrayList<DBNode>();
+			for (IndexEntry entry : iter) {
+				DBNode n = toNode(entry);
+				if (n != null)
+					nodelist.add(n);
+			}
+			if (debug && ++count % 5000 == 0) {
+				logMemUsage("GmlGeoX#search " + count + ". Box: (" + x1 + ", " + y1 + ") (" + x2 + ", " + y2 + ")"
+						+ ". Hits: " + nodelist.size());
+			}
+
+			return nodelist.toArray();
+
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Returns all items in the spatial r-tree index.
+	 *
+	 * @return the node set of all items in the index
+	 * @throws QueryException
+	 */
+	public Object[] search() throws QueryException {
+		try {
+			logMemUsage("GmlGeoX#search.start " + count + ".");
+			Iterable<IndexEntry> iter = defaultIndex().search();
+			List<DBNode> nodelist = new ArrayList<DBNode>();
+			for (IndexEntry entry : iter) {
+				DBNode n = toNode(entry);
+				if (n != null)
+					nodelist.add(n);
+			}
+			logMemUsage("GmlGeoX#search " + count + ". Hits: " + nodelist.size());
+
+			return nodelist.toArray();
+
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Searches a named spatial index for items in the envelope.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the node set of all items in the envelope
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] search(String indexName, Object minx, Object miny, Object maxx, Object maxy)
+			throws QueryException {
+		return entriesToNodes(namedIndex(indexName).search(toRectangle(minx, miny, maxx, maxy)));
+	}
+
+	/**
+	 * Returns all items in a named spatial index.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return the node set of all items in the index
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] search(String indexName) throws QueryException {
+		return entriesToNodes(namedIndex(indexName).search());
+	}
+
+	/**
+	 * Searches the spatial r-tree index for items in a three-dimensional box.
+	 * <p>
+	 * The r-tree indexes the two-dimensional bounding boxes of the geometries;
+	 * in addition, the height interval of each geometry with z coordinates is
+	 * stored with its entry. The items whose bounding box intersects the
+	 * two-dimensional box are filtered by their height interval, so that
+	 * geometries stacked on top of each other, for example the floors of a
+	 * building, are pruned by height. Items without z coordinates are
+	 * returned if their bounding box intersects the two-dimensional box.
+	 *
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param minz
+	 *            represents the minimum value on the third coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @param maxz
+	 *            represents the maximum value on the third coordinate axis; a
+	 *            number
+	 * @return the node set of all items in the box
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] search3D(Object minx, Object miny, Object minz, Object maxx, Object maxy, Object maxz)
+			throws QueryException {
+		return entriesToNodes(defaultIndex().search(toRectangle(minx, miny, maxx, maxy), toCoordinate(minz),
+				toCoordinate(maxz)));
+	}
+
+	/**
+	 * Searches a named spatial index for items in a three-dimensional box, see
+	 * {@link #search3D(Object, Object, Object, Object, Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param minz
+	 *            represents the minimum value on the third coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @param maxz
+	 *            represents the maximum value on the third coordinate axis; a
+	 *            number
+	 * @return the node set of all items in the box
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] search3D(String indexName, Object minx, Object miny, Object minz, Object maxx, Object maxy,
+			Object maxz) throws QueryException {
+		return entriesToNodes(namedIndex(indexName).search(toRectangle(minx, miny, maxx, maxy), toCoordinate(minz),
+				toCoordinate(maxz)));
+	}
+
+	/**
+	 * Searches several named spatial indexes, the shards of a partitioned
+	 * index, in parallel. A typical partitioning is one shard per database of
+	 * a test object that is split into several databases: each shard can then
+	 * be built, shared (see {@link #acquireIndex(String, String)}) and dropped
+	 * independently, and only the shard of a modified database has to be
+	 * rebuilt.
+	 *
+	 * @param indexNames
+	 *            the names of the shards
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the node set of all items in the envelope, ordered by shard in
+	 *         the order of the given names
+	 * @throws QueryException
+	 *             if an index name is empty
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public Object[] searchShards(Value indexNames, Object minx, Object miny, Object maxx, Object maxy)
+			throws QueryException {
+		final com.github.davidmoten.rtree.geometry.Rectangle bbox = toRectangle(minx, miny, maxx, maxy);
+		final List<IndexEntry> entries = new ArrayList<>();
+		for (final List<IndexEntry> shardEntries : shards(indexNames).parallelStream().map(shard -> {
+			final List<IndexEntry> found = new ArrayList<>();
+			for (final IndexEntry entry : shard.search(bbox)) {
+				found.add(entry);
+			}
+			return found;
+		}).collect(Collectors.toList())) {
+			entries.addAll(shardEntries);
+		}
+		return entriesToNodes(entries);
+	}
+
+	/**
+	 * Counts the items in several named spatial indexes that are in the
+	 * envelope, see
+	 * {@link #searchShards(Value, Object, Object, Object, Object)}.
+	 *
+	 * @param indexNames
+	 *            the names of the shards
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the number of items in the envelope
+	 * @throws QueryException
+	 *             if an index name is empty
+	 */
+	@Requires(Permission.NONE)
+	public int searchCountShards(Value indexNames, Object minx, Object miny, Object maxx, Object maxy)
+			throws QueryException {
+		final com.github.davidmoten.rtree.geometry.Rectangle bbox = toRectangle(minx, miny, maxx, maxy);
+		return shards(indexNames).parallelStream().mapToInt(shard -> shard.count(bbox)).sum();
+	}
+
+	private List<GeometryManager> shards(final Value indexNames) throws QueryException {
+		final List<GeometryManager> shards = new ArrayList<>();
+		for (final Item indexName : indexNames) {
+			shards.add(namedIndex(Token.string(indexName.string(null))));
+		}
+		return shards;
+	}
+
+	/**
+	 * Removes a named spatial index, with its r-tree and geometry cache. The
+	 * name can be used for a new index afterwards.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return <code>true</code> if the index existed, <code>false</code>
+	 *         otherwise
+	 * @throws QueryException
+	 *             if the index name is empty
+	 */
+	@Requires(Permission.NONE)
+	public boolean dropIndex(String indexName) throws QueryException {
+		checkIndexName(indexName);
+		return namedIndexes.remove(indexName) != null;
+	}
+
+	/**
+	 * Uses a spatial index that is shared with other queries as named index
+	 * of this query.
+	 * <p>
+	 * Shared indexes are registered JVM-wide by database name and index name.
+	 * If the index has been built by an earlier query and the database has not
+	 * been modified since, it is reused. Otherwise an empty index is
+	 * registered, and this query has to build it with
+	 * ggeo:index($indexName, ...) and then publish it with
+	 * {@link #releaseIndex(String, String)}. If the query ends without
+	 * releasing the index, the index is discarded. A reused index cannot be
+	 * modified by this query.
+	 * <p>
+	 * If another query is still building the index, this query gets a private
+	 * empty index, which it has to build itself and which is not published;
+	 * {@link #releaseIndex(String, String)} returns <code>false</code> for
+	 * such an index. Shared indexes that are not used by any query are removed
+	 * after an idle time (system property etf.gmlgeox.indexregistry.ttl, in
+	 * seconds, default 600).
+	 *
+	 * @param database
+	 *            the name of the database that contains the indexed features
+	 * @param indexName
+	 *            the name of the index
+	 * @return <code>true</code> if an existing index is reused,
+	 *         <code>false</code> if the index must be built
+	 * @throws QueryException
+	 *             if the database does not exist or a name is empty
+	 */
+	@Requires(Permission.NONE)
+	public boolean acquireIndex(final String database, final String indexName) throws QueryException {
+		return acquireIndex(database, indexName, false);
+	}
+
+	/**
+	 * Uses a spatial index that is shared with other queries as named index
+	 * of this query, see {@link #acquireIndex(String, String)}.
+	 * <p>
+	 * If incremental is <code>true</code> and the database has been modified
+	 * since the shared index was built, the index is not replaced by an empty
+	 * index, but handed over to this query if no other query uses it. The
+	 * index is then stale (see {@link #isIndexStale(String)}), and the query
+	 * has to update it with {@link #reindex(String, Value, Value)} before it
+	 * publishes it with {@link #releaseIndex(String, String)}.
+	 *
+	 * @param database
+	 *            the name of the database that contains the indexed features
+	 * @param indexName
+	 *            the name of the index
+	 * @param incremental
+	 *            <code>true</code> if an outdated index shall be updated
+	 *            instead of being rebuilt
+	 * @return <code>true</code> if an existing index is reused,
+	 *         <code>false</code> if the index must be built or updated
+	 * @throws QueryException
+	 *             if the database does not exist or a name is empty
+	 */
+	@Requires(Permission.NONE)
+	public boolean acquireIndex(final String database, final String indexName, final boolean incremental)
+			throws QueryException {
+		checkIndexName(indexName);
+		final Data data = queryContext.resources.database(database, new InputInfo("xpath", 0, 0));
+		final IndexRegistry.Lease lease = IndexRegistry.acquire(database, indexName, databaseStamp(data),
+				incremental);
+		queryContext.resources.index(IndexRegistry.Leases.class).add(lease);
+		namedIndexes.put(indexName, lease.index);
+		if (lease.reused) {
+			sharedIndexes.add(lease.index);
+		}
+		return lease.reused;
+	}
+
+	/**
+	 * Releases a shared index that has been acquired with
+	 * {@link #acquireIndex(String, String)}. If this query has built the
+	 * index, it becomes available to other queries. The index is no longer
+	 * available as named index of this query. All shared indexes are released
+	 * at the end of the query.
+	 *
+	 * @param database
+	 *            the name of the database that contains the indexed features
+	 * @param indexName
+	 *            the name of the index
+	 * @return <code>true</code> if the query held the shared index,
+	 *         <code>false</code> if it held no lease on the index or only a
+	 *         private index, because another query was building the index
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public boolean releaseIndex(final String database, final String indexName) throws QueryException {
+		final IndexRegistry.Lease lease = queryContext.resources.index(IndexRegistry.Leases.class)
+				.release(database, indexName);
+		if (lease == null) {
+			return false;
+		}
+		if (namedIndexes.get(indexName) == lease.index) {
+			namedIndexes.remove(indexName);
+		}
+		sharedIndexes.remove(lease.index);
+		return lease.isShared();
+	}
+
+	/**
+	 * Checks that an index is not a shared index that has been built by
+	 * another query
+	 */
+	private void checkWritable(final GeometryManager index) throws QueryException {
+		if (sharedIndexes.contains(index)) {
+			throw new QueryException(
+					"A shared index that has been built by another query cannot be modified.");
+		}
+	}
+
+	/**
+	 * Identifies the state of a database: the time of its last modification,
+	 * which BaseX updates with every update of the database
+	 */
+	private static long databaseStamp(final Data data) {
+		return data.meta.time;
+	}
+
+	/**
+	 * Checks if the data is a document that is not stored in a database,
+	 * e.g. a parsed document. BaseX only opens main memory data by name if
+	 * main memory databases are used.
+	 */
+	private boolean isDocument(final Data data) {
+		return data.inMemory() && !queryContext.context.options.get(MainOptions.MAINMEM);
+	}
+
+	/**
+	 * Records the modification stamp of the data of an indexed node
+	 */
+	private void recordStamp(final GeometryManager index, final Data data) {
+		if (isDocument(data)) {
+			index.recordDocumentStamp(data, databaseStamp(data));
+		} else {
+			index.recordDatabaseStamp(data.meta.name, databaseStamp(data));
+		}
+	}
+
+	/**
+	 * Returns the data of an indexed node: the document that is not stored
+	 * in a database, or the database opened by its name
+	 */
+	private Data data(final IndexEntry entry) throws QueryException {
+		if (entry.document != null && isDocument(entry.document)) {
+			return entry.document;
+		}
+		return queryContext.resources.database(entry.dbname, new InputInfo("xpath", 0, 0));
+	}
+
+	/**
+	 * Returns the first database or document that has been modified since it
+	 * was indexed, or <code>null</code> if the index is current
+	 *
+	 * @throws QueryException
+	 *             if an existing database cannot be opened
+	 */
+	private String staleDatabase(final GeometryManager index) throws QueryException {
+		for (final Map.Entry<String, Long> stamp : index.databaseStamps().entrySet()) {
+			final Data data;
+			try {
+				data = queryContext.resources.database(stamp.getKey(), new InputInfo("xpath", 0, 0));
+			} catch (final QueryException e) {
+				if (!queryContext.context.soptions.dbExists(stamp.getKey())) {
+					// The database has been dropped
+					return stamp.getKey();
+				}
+				throw e;
+			}
+			if (databaseStamp(data) != stamp.getValue()) {
+				return stamp.getKey();
+			}
+		}
+		for (final Map.Entry<Data, Long> stamp : index.documentStamps().entrySet()) {
+			if (databaseStamp(stamp.getKey()) != stamp.getValue()) {
+				return stamp.getKey().meta.name;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks that the databases of an index have not been modified since they
+	 * were indexed. Databases cannot be modified while a query is running, so
+	 * each index is only checked once.
+	 */
+	private GeometryManager checkCurrent(final GeometryManager index) throws QueryException {
+		if (!currentIndexes.contains(index)) {
+			final String database = staleDatabase(index);
+			if (database != null) {
+				throw new QueryException("The spatial index is stale: database '" + database
+						+ "' has been modified since it was indexed. Update the index with ggeo:reindex.");
+			}
+			currentIndexes.add(index);
+		}
+		return index;
+	}
+
+	/**
+	 * Checks if a database of the spatial index has been modified since it was
+	 * indexed. The nodes of a stale index cannot be accessed; it must be
+	 * updated with {@link #reindex(Value, Value)}.
+	 *
+	 * @return <code>true</code> if the index is stale, <code>false</code>
+	 *         otherwise
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public boolean isIndexStale() throws QueryException {
+		return staleDatabase(defaultIndexUnchecked()) != null;
+	}
+
+	/**
+	 * Checks if a database of a named spatial index has been modified since
+	 * it was indexed, see {@link #isIndexStale()}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return <code>true</code> if the index is stale, <code>false</code>
+	 *         otherwise
+	 * @throws QueryException
+	 *             if the index name is empty
+	 */
+	@Requires(Permission.NONE)
+	public boolean isIndexStale(final String indexName) throws QueryException {
+		return staleDatabase(namedIndexUnchecked(indexName)) != null;
+	}
+
+	/**
+	 * Updates the spatial index after its databases have been modified.
+	 * <p>
+	 * The features are the current feature nodes of the modified databases,
+	 * identified by their gml:id, as for {@link #indexAll(Value)}. A feature
+	 * that is already indexed keeps its bounding box and cached geometry, only
+	 * its node reference is updated; its geometry is not parsed again. New
+	 * features and the features with the given changed ids are indexed with
+	 * their current geometry. Indexed features of these databases that are
+	 * not given are removed from the index.
+	 *
+	 * @param features
+	 *            the current feature nodes of the modified databases
+	 * @param changed
+	 *            the gml:ids of the features whose geometry has changed
+	 * @return a map with the errors, see {@link #indexAll(Value)}
+	 * @throws QueryException
+	 *             if an item is not a database node
+	 */
+	@Requires(Permission.NONE)
+	public Value reindex(final Value features, final Value changed) throws QueryException {
+		return reindex(defaultIndexUnchecked(), features, changed);
+	}
+
+	/**
+	 * Updates a named spatial index after its databases have been modified,
+	 * see {@link #reindex(Value, Value)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param features
+	 *            the current feature nodes of the modified databases
+	 * @param changed
+	 *            the gml:ids of the features whose geometry has changed
+	 * @return a map with the errors, see {@link #indexAll(Value)}
+	 * @throws QueryException
+	 *             if the index name is empty or an item is not a database
+	 *             node
+	 */
+	@Requires(Permission.NONE)
+	public Value reindex(final String indexName, final Value features, final Value changed) throws QueryException {
+		return reindex(namedIndexUnchecked(indexName), features, changed);
+	}
+
+	private Value reindex(final GeometryManager index, final Value features, final Value changed)
+			throws QueryException {
+		checkWritable(index);
+		final Set<String> changedIds = new HashSet<>();
+		for (final Item id : changed) {
+			changedIds.add(Token.string(id.string(null)));
+		}
+		final Map<String, Long> stamps = new HashMap<>();
+		final Map<Data, Long> documents = new IdentityHashMap<>();
+		for (final Item item : features) {
+			if (!(item instanceof DBNode)) {
+				throw new QueryException("Only feature nodes of a database can be indexed.");
+			}
+			final Data data = ((DBNode) item).data();
+			if (isDocument(data)) {
+				documents.put(data, databaseStamp(data));
+			} else {
+				stamps.put(data.meta.name, databaseStamp(data));
+			}
+		}
+		// Keep the entries of the other databases, the entries of the given
+		// databases are replaced
+		final List<com.github.davidmoten.rtree.Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries = new ArrayList<>();
+		final Map<String, com.github.davidmoten.rtree.Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> previous = new HashMap<>();
+		for (final com.github.davidmoten.rtree.Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry : index
+				.entries()) {
+			final IndexEntry value = entry.value();
+			if (value.document != null && isDocument(value.document) ? !documents.containsKey(value.document)
+					: !stamps.containsKey(value.dbname)) {
+				entries.add(entry);
+			} else if (entry.value().id != null) {
+				previous.put(entry.value().id, entry);
+			}
+		}
+		final byte[][] geometryNames = geometryNames();
+		org.basex.query.value.map.Map errors = org.basex.query.value.map.Map.EMPTY;
+		final List<ANode[]> parse = new ArrayList<>();
+		long position = 0;
+		for (final Item item : features) {
+			position++;
+			final ANode feature = (ANode) item;
+			final ANode geometry = firstGeometry(feature, geometryNames);
+			if (geometry == null) {
+				continue;
+			}
+			final String id = gmlId(feature);
+			if (id == null) {
+				errors = errors.put(Int.get(position), MISSING_ID.toValue(null), null);
+				continue;
+			}
+			final com.github.davidmoten.rtree.Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry = previous
+					.remove(id);
+			if (entry != null && !changedIds.contains(id)) {
+				entries.add(Entries.entry(
+						new IndexEntry(feature, id, geometry, entry.value().minZ, entry.value().maxZ),
+						entry.geometry()));
+			} else {
+				index.invalidate(id);
+				parse.add(new ANode[]{feature, geometry});
+			}
+		}
+		// Features that have been removed
+		for (final String id : previous.keySet()) {
+			index.invalidate(id);
+		}
+		index.replace(entries, stamps, documents);
+		for (final ANode[] feature : parse) {
+			final String id = gmlId(feature[0]);
+			try {
+				index(index, feature[0], id, feature[1]);
+			} catch (final GeometryError e) {
+				final Str key = Str.get(id);
+				errors = errors.put(key, e.toValue(key), null);
+			}
+		}
+		currentIndexes.add(index);
+		return errors;
+	}
+
+	private Object[] entriesToNodes(final Iterable<IndexEntry> entries) throws QueryException {
+		final List<DBNode> nodes = new ArrayList<>();
+		for (final IndexEntry entry : entries) {
+			nodes.add(toNode(entry));
+		}
+		return nodes.toArray();
+	}
+
+	private GeometryManager defaultIndex() throws QueryException {
+		return checkCurrent(defaultIndexUnchecked());
+	}
+
+	private GeometryManager defaultIndexUnchecked() throws QueryException {
+		GeometryManager index = mgr;
+		if (index == null) {
+			synchronized (this) {
+				index = mgr;
+				if (index == null) {
+					index = mgr = new GeometryManager();
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the named index, an empty index is created if it does not exist
+	 */
+	private GeometryManager namedIndex(final String indexName) throws QueryException {
+		return checkCurrent(namedIndexUnchecked(indexName));
+	}
+
+	private GeometryManager namedIndexUnchecked(final String indexName) throws QueryException {
+		checkIndexName(indexName);
+		GeometryManager index = namedIndexes.get(indexName);
+		if (index == null) {
+			synchronized (namedIndexes) {
+				index = namedIndexes.get(indexName);
+				if (index == null) {
+					index = new GeometryManager();
+					namedIndexes.put(indexName, index);
+				}
+			}
+		}
+		return index;
+	}
+
+	private static void checkIndexName(final String indexName) throws QueryException {
+		if (indexName == null || indexName.isEmpty()) {
+			throw new QueryException("The name of a spatial index must not be empty.");
+		}
+	}
+
+	/**
+	 * Counts the items in the spatial r-tree index that are in the envelope,
+	 * without creating their nodes.
+	 *
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the number of items in the envelope, i.e.
+	 *         count(ggeo:search(minx,miny,maxx,maxy))
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public int searchCount(Object minx, Object miny, Object maxx, Object maxy) throws QueryException {
+		return defaultIndex().count(toRectangle(minx, miny, maxx, maxy));
+	}
+
+	/**
+	 * Counts the items in a named spatial index that are in the envelope, see
+	 * {@link #searchCount(Object, Object, Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return the number of items in the envelope
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public int searchCount(String indexName, Object minx, Object miny, Object maxx, Object maxy)
+			throws QueryException {
+		return namedIndex(indexName).count(toRectangle(minx, miny, maxx, maxy));
+	}
+
+	/**
+	 * Checks if the spatial r-tree index contains an item in the envelope. The
+	 * search stops at the first item found.
+	 *
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return <code>true</code> if at least one item is in the envelope, i.e.
+	 *         exists(ggeo:search(minx,miny,maxx,maxy))
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public boolean searchExists(Object minx, Object miny, Object maxx, Object maxy) throws QueryException {
+		return defaultIndex().exists(toRectangle(minx, miny, maxx, maxy));
+	}
+
+	/**
+	 * Checks if a named spatial index contains an item in the envelope, see
+	 * {@link #searchExists(Object, Object, Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param minx
+	 *            represents the minimum value on the first coordinate axis; a
+	 *            number
+	 * @param miny
+	 *            represents the minimum value on the second coordinate axis; a
+	 *            number
+	 * @param maxx
+	 *            represents the maximum value on the first coordinate axis; a
+	 *            number
+	 * @param maxy
+	 *            represents the maximum value on the second coordinate axis; a
+	 *            number
+	 * @return <code>true</code> if at least one item is in the envelope
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public boolean searchExists(String indexName, Object minx, Object miny, Object maxx, Object maxy)
+			throws QueryException {
+		return namedIndex(indexName).exists(toRectangle(minx, miny, maxx, maxy));
+	}
+
+	/**
+	 * Returns the extent of the spatial r-tree index. The r-tree stores the
+	 * envelopes of the items with single precision, so the extent may deviate
+	 * slightly from the envelope of the indexed geometries.
+	 *
+	 * @return the extent as sequence of four numbers (minimum x, minimum y,
+	 *         maximum x, maximum y), or the empty sequence if the index is
+	 *         empty
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public Object[] indexExtent() throws QueryException {
+		return extentOf(defaultIndex());
+	}
+
+	/**
+	 * Returns the extent of a named spatial index, see {@link #indexExtent()}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return the extent as sequence of four numbers (minimum x, minimum y,
+	 *         maximum x, maximum y), or the empty sequence if the index is
+	 *         empty
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public Object[] indexExtent(String indexName) throws QueryException {
+		return extentOf(namedIndex(indexName));
+	}
+
+	private static Object[] extentOf(final GeometryManager index) {
+		final com.github.davidmoten.rtree.geometry.Rectangle extent = index.extent();
+		if (extent == null) {
+			return new Object[0];
+		}
+		return new Object[]{(double) extent.x1(), (double) extent.y1(), (double) extent.x2(), (double) extent.y2()};
+	}
+
+	/**
+	 * Sorts nodes in the order of a Hilbert curve through the centres of the
+	 * bounding boxes with which they have been indexed. Features that are
+	 * close to each other in space are close to each other in the result, so
+	 * that processing the features in this order makes better use of the
+	 * geometry cache and the r-tree. The bounding boxes are taken from the
+	 * index, the geometries are not parsed.
+	 *
+	 * @param nodes
+	 *            the nodes to sort
+	 * @return the indexed nodes in the order of the Hilbert curve, followed by
+	 *         the nodes that are not indexed in their original order
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public Value sortSpatially(final Value nodes) throws QueryException {
+		return sortSpatially(defaultIndex(), nodes);
+	}
+
+	/**
+	 * Sorts nodes in the order of a Hilbert curve through the centres of the
+	 * bounding boxes with which they have been indexed in a named index, see
+	 * {@link #sortSpatially(Value)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param nodes
+	 *            the nodes to sort
+	 * @return the indexed nodes in the order of the Hilbert curve, followed by
+	 *         the nodes that are not indexed in their original order
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public Value sortSpatially(final String indexName, final Value nodes) throws QueryException {
+		return sortSpatially(namedIndex(indexName), nodes);
+	}
+
+	private static Value sortSpatially(final GeometryManager index, final Value nodes) {
+		final com.github.davidmoten.rtree.geometry.Rectangle extent = index.extent();
+		final List<Item> unindexed = new ArrayList<>();
+		final List<Item> indexed = new ArrayList<>();
+		final List<Long> keys = new ArrayList<>();
+		if (extent != null) {
+			final HilbertCurve curve = new HilbertCurve(extent);
+			for (final Item item : nodes) {
+				final com.github.davidmoten.rtree.geometry.Rectangle envelope = item instanceof DBNode
+						? index.envelope(((DBNode) item).data().meta.name, ((DBNode) item).pre()) : null;
+				if (envelope != null) {
+					indexed.add(item);
+					keys.add(curve.index(envelope));
+				} else {
+					unindexed.add(item);
+				}
+			}
+		} else {
+			for (final Item item : nodes) {
+				unindexed.add(item);
+			}
+		}
+		final Integer[] order = new Integer[indexed.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Long.compare(keys.get(i1), keys.get(i2)));
+		final ValueBuilder vb = new ValueBuilder();
+		for (final Integer i : order) {
+			vb.add(indexed.get(i));
+		}
+		for (final Item item : unindexed) {
+			vb.add(item);
+		}
+		return vb.value();
+	}
+
+	private static com.github.davidmoten.rtree.geometry.Rectangle toRectangle(Object minx, Object miny, Object maxx,
+			Object maxy) {
+		return Geometries.rectangle(toCoordinate(minx), toCoordinate(miny), toCoordinate(maxx), toCoordinate(maxy));
+	}
+
+	private static double toCoordinate(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+	}
+
+	/**
+	 * Convert a numeric argument; BaseX passes an xs:integer as BigInteger,
+	 * an xs:decimal as BigDecimal and an xs:double as Double.
+	 */
+	private static double toDouble(final Object value, final String name) throws QueryException {
+		if (!(value instanceof Number)) {
+			throw new QueryException("The " + name + " must be a number, but was '" + value + "'.");
+		}
+		return ((Number) value).doubleValue();
+	}
+
+	private static int toInt(final Object value, final String name) throws QueryException {
+		final double number = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+		if (number != Math.rint(number) || Math.abs(number) > Integer.MAX_VALUE) {
+			throw new QueryException("The " + name + " must be an integer, but was '" + value + "'.");
+		}
+		return (int) number;
+	}
+
+	/**
+	 * Searches the spatial r-tree index for the features that are nearest to a
+	 * geometry.
+	 * <p>
+	 * The index is searched best-first, and the exact distances are computed
+	 * with JTS. The geometries of the candidates are taken from the geometry
+	 * cache, or parsed again from the indexed geometry nodes. If the given
+	 * geometry is indexed itself, it is part of the result.
+	 *
+	 * @param geom
+	 *            the geometry (GML geometry node or JTS geometry)
+	 * @param k
+	 *            the maximum number of features; an integer
+	 * @return the nodes of the up to k nearest features, ordered by distance
+	 * @throws QueryException
+	 *             if k is not an integer, the geometry or an indexed geometry
+	 *             could not be processed, or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Object[] nearest(final Object geom, final Object k) throws QueryException {
+		return toNodes(neighbourSearch(defaultIndex()).nearest(toJTSGeometry(geom),
+				toInt(k, "number of features")));
+	}
+
+	/**
+	 * Searches a named spatial index for the features that are nearest to a
+	 * geometry, see {@link #nearest(Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param geom
+	 *            the geometry (GML geometry node or JTS geometry)
+	 * @param k
+	 *            the maximum number of features; an integer
+	 * @return the nodes of the up to k nearest features, ordered by distance
+	 * @throws QueryException
+	 *             if k is not an integer, the geometry or an indexed geometry
+	 *             could not be processed, or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Object[] nearest(final String indexName, final Object geom, final Object k) throws QueryException {
+		return toNodes(neighbourSearch(namedIndex(indexName)).nearest(toJTSGeometry(geom),
+				toInt(k, "number of features")));
+	}
+
+	/**
+	 * Searches the spatial r-tree index for the features within a distance of
+	 * a geometry.
+	 * <p>
+	 * The index is searched best-first, and the search stops as soon as the
+	 * bounding boxes of the remaining candidates are further away than the
+	 * distance. The exact distances are computed with JTS. If the given
+	 * geometry is indexed itself, it is part of the result.
+	 *
+	 * @param geom
+	 *            the geometry (GML geometry node or JTS geometry)
+	 * @param distance
+	 *            the maximum distance, inclusive, in the units of the
+	 *            coordinate reference system; a number
+	 * @return the nodes of the features within the distance, ordered by
+	 *         distance
+	 * @throws QueryException
+	 *             if the distance is not a number or negative, the geometry
+	 *             or an indexed geometry could not be processed, or the query
+	 *             has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Object[] withinDistance(final Object geom, final Object distance) throws QueryException {
+		final double maxDistance = checkDistance(distance);
+		return toNodes(neighbourSearch(defaultIndex()).withinDistance(toJTSGeometry(geom), maxDistance));
+	}
+
+	/**
+	 * Searches a named spatial index for the features within a distance of a
+	 * geometry, see {@link #withinDistance(Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param geom
+	 *            the geometry (GML geometry node or JTS geometry)
+	 * @param distance
+	 *            the maximum distance, inclusive, in the units of the
+	 *            coordinate reference system; a number
+	 * @return the nodes of the features within the distance, ordered by
+	 *         distance
+	 * @throws QueryException
+	 *             if the distance is not a number or negative, the geometry
+	 *             or an indexed geometry could not be processed, or the query
+	 *             has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Object[] withinDistance(final String indexName, final Object geom, final Object distance)
+			throws QueryException {
+		final double maxDistance = checkDistance(distance);
+		return toNodes(neighbourSearch(namedIndex(indexName)).withinDistance(toJTSGeometry(geom), maxDistance));
+	}
+
+	private static double checkDistance(final Object value) throws QueryException {
+		final double distance = toDouble(value, "distance");
+		if (distance < 0 || Double.isNaN(distance)) {
+			throw new QueryException("The distance must not be negative, but was " + distance + ".");
+		}
+		return distance;
+	}
+
+	private NearestNeighbourSearch<com.github.davidmoten.rtree.geometry.Geometry> neighbourSearch(
+			final GeometryManager index) {
+		return new NearestNeighbourSearch<>(index.rtree(), loader(index), queryContext);
+	}
+
+	private Object[] toNodes(final List<NearestNeighbourSearch.Neighbour> neighbours) throws QueryException {
+		final Object[] nodes = new Object[neighbours.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = toNode(neighbours.get(i).entry);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Determines the indexed polygons that contain each of a sequence of
+	 * points.
+	 * <p>
+	 * The candidate polygons of each point are taken from the spatial index.
+	 * Each candidate polygon is prepared once for fast point location, and the
+	 * points are classified in parallel. A point on the boundary of a polygon
+	 * is located in that polygon. Indexed features whose geometry is not
+	 * polygonal are ignored.
+	 *
+	 * @param points
+	 *            the points, GML point geometry nodes or JTS points
+	 * @return for each point, in the order of the given points, an array with
+	 *         the ids of the polygons that contain the point; the array is
+	 *         empty if no polygon contains the point
+	 * @throws QueryException
+	 *             if an item is not a point
+	 */
+	@Requires(Permission.NONE)
+	public Value locatePoints(final Value points) throws QueryException {
+		return locatePoints(points, defaultIndex());
+	}
+
+	/**
+	 * Determines the polygons of a named index that contain each of a
+	 * sequence of points, see {@link #locatePoints(Value)}.
+	 *
+	 * @param points
+	 *            the points, GML point geometry nodes or JTS points
+	 * @param indexName
+	 *            the name of the index of the polygons
+	 * @return for each point, in the order of the given points, an array with
+	 *         the ids of the polygons that contain the point; the array is
+	 *         empty if no polygon contains the point
+	 * @throws QueryException
+	 *             if the index name is empty or an item is not a point
+	 */
+	@Requires(Permission.NONE)
+	public Value locatePoints(final Value points, final String indexName) throws QueryException {
+		return locatePoints(points, namedIndex(indexName));
+	}
+
+	private Value locatePoints(final Value points, final GeometryManager index) throws QueryException {
+		final List<com.vividsolutions.jts.geom.Coordinate> coordinates = new ArrayList<>((int) points.size());
+		for (final Item item : points) {
+			final com.vividsolutions.jts.geom.Geometry point = toJTSGeometry(item);
+			if (!(point instanceof com.vividsolutions.jts.geom.Point) || point.isEmpty()) {
+				throw new QueryException("Only points can be located, but found a geometry of type "
+						+ point.getGeometryType() + ".");
+			}
+			coordinates.add(point.getCoordinate());
+		}
+		final ValueBuilder vb = new ValueBuilder();
+		for (final List<IndexEntry> polygons : new PointLocator(index.rtree(), loader(index), queryContext)
+				.locate(coordinates)) {
+			vb.add(Array.from(ids(polygons).value()));
+		}
+		return vb.value();
+	}
+
+	private com.vividsolutions.jts.geom.Geometry toJTSGeometry(final Object geom) throws QueryException {
+		try {
+			return geoutils.toJTSGeometry(geom);
+		} catch (Exception e) {
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Computes all pairs of indexed features whose geometries satisfy a
+	 * spatial relationship (spatial self-join of the index).
+	 * <p>
+	 * The candidate pairs are determined from the r-tree and refined in
+	 * parallel. A feature is not paired with itself. For symmetric
+	 * relationships (all except 'contains', 'within' and asymmetric
+	 * intersection patterns) each pair is returned once. The geometries are
+	 * taken from the geometry cache, or parsed again from the indexed
+	 * geometry nodes.
+	 *
+	 * @param relationship
+	 *            the name of a spatial relationship operator: 'contains',
+	 *            'crosses', 'equals', 'intersects', 'overlaps', 'touches' or
+	 *            'within'; or a DE-9IM intersection pattern that requires the
+	 *            geometries to intersect
+	 * @return a sequence of arrays, each with the two nodes of a matching pair
+	 * @throws QueryException
+	 *             if the relationship is not supported, or a geometry could
+	 *             not be loaded
+	 */
+	@Requires(Permission.NONE)
+	public Value join(final String relationship) throws QueryException {
+		final GeometryManager index = defaultIndex();
+		final SpatialJoin join = new SpatialJoin(SpatialJoin.Relationship.parse(relationship), queryContext);
+		return toNodePairs(join.selfJoin(index.rtree(), loader(index)));
+	}
+
+	/**
+	 * Computes all pairs of features of a named index whose geometries satisfy
+	 * a spatial relationship, see {@link #join(String)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param relationship
+	 *            the name of a spatial relationship operator, or a DE-9IM
+	 *            intersection pattern
+	 * @return a sequence of arrays, each with the two feature nodes of a
+	 *         matching pair
+	 * @throws QueryException
+	 *             if the relationship is not supported, a geometry could not
+	 *             be loaded or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value join(final String indexName, final String relationship) throws QueryException {
+		final GeometryManager index = namedIndex(indexName);
+		final SpatialJoin join = new SpatialJoin(SpatialJoin.Relationship.parse(relationship), queryContext);
+		return toNodePairs(join.selfJoin(index.rtree(), loader(index)));
+	}
+
+	/**
+	 * Computes all pairs of a feature of one named index and a feature of
+	 * another named index whose geometries satisfy a spatial relationship.
+	 * <p>
+	 * The two r-trees are traversed together, and the candidate pairs are
+	 * refined in parallel. The geometries are taken from the geometry caches
+	 * of the indexes, or parsed again from the indexed geometry nodes.
+	 *
+	 * @param indexName1
+	 *            the name of the index with the first features of the pairs
+	 * @param indexName2
+	 *            the name of the index with the second features of the pairs
+	 * @param relationship
+	 *            the name of a spatial relationship operator, or a DE-9IM
+	 *            intersection pattern; the relationship is tested from the
+	 *            first to the second feature
+	 * @return a sequence of arrays, each with the two feature nodes of a
+	 *         matching pair, ordered by the first and then the second feature
+	 * @throws QueryException
+	 *             if the relationship is not supported, a geometry could not
+	 *             be loaded or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value join(final String indexName1, final String indexName2, final String relationship)
+			throws QueryException {
+		final GeometryManager index1 = namedIndex(indexName1);
+		final GeometryManager index2 = namedIndex(indexName2);
+		final SpatialJoin join = new SpatialJoin(SpatialJoin.Relationship.parse(relationship), queryContext);
+		return toNodePairs(join.join(index1.rtree(), index2.rtree(), loader(index1), loader(index2)));
+	}
+
+	/**
+	 * Checks if the polygonal geometries of the indexed features form a clean
+	 * coverage.
+	 * <p>
+	 * Overlaps are detected with a self join of the spatial index. Gaps are
+	 * detected from the boundary segments that are not shared by two
+	 * geometries: these segments are noded and polygonized, and each face
+	 * whose interior is not covered by an indexed geometry is a gap. Holes of
+	 * polygons that are not filled by other features are reported as gaps,
+	 * too. Geometries that are not polygonal are ignored.
+	 * <p>
+	 * Each error is returned as a map with the entries 'type' ('overlap' or
+	 * 'gap'), 'ids' (the ids of the overlapping features, or of the features
+	 * adjacent to the gap) and 'geometry' (the JTS geometry of the overlap or
+	 * gap).
+	 *
+	 * @return the overlaps, followed by the gaps; the empty sequence if the
+	 *         coverage is clean
+	 * @throws QueryException
+	 *             if a geometry could not be loaded or processed, or the query
+	 *             has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value coverageErrors() throws QueryException {
+		return coverageErrors(defaultIndex());
+	}
 
-		try {
-			double x1;
-			double x2;
-			double y1;
-			double y2;
-			if (minx instanceof Number)
-				x1 = ((Number) minx).doubleValue();
-			else
-				x1 = 0.0;
-			if (miny instanceof Number)
-				y1 = ((Number) miny).doubleValue();
-			else
-				y1 = 0.0;
-			if (maxx instanceof Number)
-				x2 = ((Number) maxx).doubleValue();
-			else
-				x2 = 0.0;
-			if (maxy instanceof Number)
-				y2 = ((Number) maxy).doubleValue();
-			else
-				y2 = 0.0;
+	/**
+	 * Checks if the polygonal geometries of the features of a named index form
+	 * a clean coverage, see {@link #coverageErrors()}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @return the overlaps, followed by the gaps; the empty sequence if the
+	 *         coverage is clean
+	 * @throws QueryException
+	 *             if a geometry could not be loaded or processed, or the query
+	 *             has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value coverageErrors(final String indexName) throws QueryException {
+		return coverageErrors(namedIndex(indexName));
+	}
 
-			if (mgr == null)
-				mgr = new GeometryManager();
-			Iterable<IndexEntry> iter = mgr.search(Geometries.rectangle(x1, y1, x2, y2));
-			List<DBNode> nodelist = new ArrayList<DBNode>();
-			for (IndexEntry entry : iter) {
-				Data d = queryContext.resources.database(entry.dbname, new InputInfo("xpath", 0, 0));
-				DBNode n = new DBNode(d, entry.pre);
-				if (n != null)
-					nodelist.add(n);
-			}
-			if (debug && ++count % 5000 == 0) {
-				logMemUsage("GmlGeoX#search " + count + ". Box: (" + x1 + ", " + y1 + ") (" + x2 + ", " + y2 + ")"
-						+ ". Hits: " + nodelist.size());
-			}
+	private Value coverageErrors(final GeometryManager index) throws QueryException {
+		final ValueBuilder vb = new ValueBuilder();
+		for (final CoverageCheck.CoverageError error : new CoverageCheck(queryContext).check(index.rtree(),
+				loader(index))) {
+			vb.add(org.basex.query.value.map.Map.EMPTY.put(Str.get("type"), Str.get(error.type), null)
+					.put(Str.get("ids"), ids(error.features).value(), null)
+					.put(Str.get("geometry"), new Jav(error.location, queryContext), null));
+		}
+		return vb.value();
+	}
 
-			return nodelist.toArray();
+	/**
+	 * Analyses the connectivity of the network formed by the curves of the
+	 * indexed features.
+	 * <p>
+	 * The end points of the curves are snapped into nodes using a hashed grid:
+	 * end points within the tolerance of an existing node are merged into that
+	 * node. Each curve connects its start and end node; the connected
+	 * components are computed with union-find. Geometries that are not curves
+	 * are ignored.
+	 * <p>
+	 * The result is a map with the entries
+	 * <ul>
+	 * <li>'nodeCount': the number of nodes,</li>
+	 * <li>'components': one array per connected component with the ids of its
+	 * features, largest component first,</li>
+	 * <li>'danglingNodes': a map per node with a single curve, with the entries
+	 * 'ids' (the id of the feature) and 'geometry' (the JTS point of the
+	 * node),</li>
+	 * <li>'nearMisses': a map per dangling node and other node or curve that
+	 * are not connected but lie within the near miss distance, with the
+	 * entries 'ids' (the ids of the features at the dangling node, followed
+	 * by those at the other node or the id of the curve), 'distance' and
+	 * 'geometry' (a JTS line from the dangling node to the other node or the
+	 * nearest point of the curve). A dangling node close to the interior of
+	 * another curve typically is an undershoot.</li>
+	 * </ul>
+	 *
+	 * @param tolerance
+	 *            the distance within which end points are snapped into one
+	 *            node; 0 if end points must be identical; a number
+	 * @param nearMissDistance
+	 *            the distance within which a dangling node and another node or
+	 *            curve are reported as near miss; 0 to not report near misses;
+	 *            a number
+	 * @return the result of the analysis as a map
+	 * @throws QueryException
+	 *             if a distance is not a number or negative, a geometry could
+	 *             not be loaded or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value networkAnalysis(final Object tolerance, final Object nearMissDistance) throws QueryException {
+		return networkAnalysis(defaultIndex(), toDouble(tolerance, "tolerance"),
+				toDouble(nearMissDistance, "near miss distance"));
+	}
 
-		} catch (Exception e) {
-			throw new QueryException(e);
+	/**
+	 * Analyses the connectivity of the network formed by the curves of the
+	 * features of a named index, see
+	 * {@link #networkAnalysis(Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param tolerance
+	 *            the distance within which end points are snapped into one
+	 *            node; 0 if end points must be identical; a number
+	 * @param nearMissDistance
+	 *            the distance within which a dangling node and another node or
+	 *            curve are reported as near miss; 0 to not report near misses;
+	 *            a number
+	 * @return the result of the analysis as a map
+	 * @throws QueryException
+	 *             if a distance is not a number or negative, a geometry could
+	 *             not be loaded or the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value networkAnalysis(final String indexName, final Object tolerance, final Object nearMissDistance)
+			throws QueryException {
+		return networkAnalysis(namedIndex(indexName), toDouble(tolerance, "tolerance"),
+				toDouble(nearMissDistance, "near miss distance"));
+	}
+
+	private Value networkAnalysis(final GeometryManager index, final double tolerance, final double nearMissDistance)
+			throws QueryException {
+		final NetworkAnalysis network = new NetworkAnalysis(tolerance, nearMissDistance, queryContext);
+		final Map<IndexEntry, com.vividsolutions.jts.geom.Geometry> geometries = SpatialJoin.loadAll(index.rtree(),
+				loader(index), queryContext);
+		final List<IndexEntry> features = new ArrayList<>(geometries.keySet());
+		Collections.sort(features, SpatialJoin.ENTRY_ORDER);
+		network.addAll(features, geometries);
+
+		final ValueBuilder components = new ValueBuilder();
+		for (final List<IndexEntry> component : network.components()) {
+			components.add(Array.from(ids(component).value()));
+		}
+		final ValueBuilder dangling = new ValueBuilder();
+		for (final NetworkAnalysis.NetworkNode node : network.danglingNodes()) {
+			dangling.add(org.basex.query.value.map.Map.EMPTY.put(Str.get("ids"), ids(node.features).value(), null)
+					.put(Str.get("geometry"), new Jav(geoutils.jtsFactory.createPoint(node.coordinate), queryContext),
+							null));
+		}
+		final ValueBuilder nearMisses = new ValueBuilder();
+		for (final NetworkAnalysis.NearMiss nearMiss : network.nearMisses()) {
+			final ValueBuilder ids = ids(nearMiss.node.features);
+			ids.add(ids(nearMiss.features).value());
+			final com.vividsolutions.jts.geom.LineString line = geoutils.jtsFactory.createLineString(
+					new com.vividsolutions.jts.geom.Coordinate[]{nearMiss.node.coordinate, nearMiss.coordinate});
+			nearMisses.add(org.basex.query.value.map.Map.EMPTY.put(Str.get("ids"), ids.value(), null)
+					.put(Str.get("distance"), Dbl.get(nearMiss.distance), null)
+					.put(Str.get("geometry"), new Jav(line, queryContext), null));
 		}
+		return org.basex.query.value.map.Map.EMPTY.put(Str.get("nodeCount"), Int.get(network.nodeCount()), null)
+				.put(Str.get("components"), components.value(), null)
+				.put(Str.get("danglingNodes"), dangling.value(), null)
+				.put(Str.get("nearMisses"), nearMisses.value(), null);
 	}
 
 	/**
-	 * Returns all items in the spatial r-tree index.
+	 * Finds the indexed features with duplicate geometries.
+	 * <p>
+	 * The geometries are normalized, so that the order of their components,
+	 * the orientation of their rings and the start point of each ring do not
+	 * matter, and grouped by a hash of their normalized coordinates. The
+	 * candidates in a group are confirmed by comparing their coordinates
+	 * vertex by vertex. With a tolerance, the coordinates of duplicates may
+	 * differ by up to the tolerance. Features whose geometries are duplicates
+	 * of each other are returned as one group. Empty geometries are ignored.
 	 *
-	 * @return the node set of all items in the index
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @return one array per group of duplicates with the feature nodes of the
+	 *         group
 	 * @throws QueryException
+	 *             if the tolerance is not a number or negative, a geometry
+	 *             could not be loaded or the query has been stopped
 	 */
-	public Object[] search() throws QueryException {
-		try {
-			logMemUsage("GmlGeoX#search.start " + count + ".");
-			if (mgr == null)
-				mgr = new GeometryManager();
-			Iterable<IndexEntry> iter = mgr.search();
-			List<DBNode> nodelist = new ArrayList<DBNode>();
-			for (IndexEntry entry : iter) {
-				Data d = queryContext.resources.database(entry.dbname, new InputInfo("xpath", 0, 0));
-				DBNode n = new DBNode(d, entry.pre);
-				if (n != null)
-					nodelist.add(n);
+	@Requires(Permission.NONE)
+	public Value findDuplicates(final Object tolerance) throws QueryException {
+		return findDuplicates(defaultIndex(), toDouble(tolerance, "tolerance"));
+	}
+
+	/**
+	 * Finds the features of a named index with duplicate geometries, see
+	 * {@link #findDuplicates(Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param tolerance
+	 *            the distance within which two coordinates are equal; 0 if
+	 *            they must be identical; a number
+	 * @return one array per group of duplicates with the feature nodes of the
+	 *         group
+	 * @throws QueryException
+	 *             if the index name is empty, the tolerance is not a number
+	 *             or negative, a geometry could not be loaded or the query
+	 *             has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value findDuplicates(final String indexName, final Object tolerance) throws QueryException {
+		return findDuplicates(namedIndex(indexName), toDouble(tolerance, "tolerance"));
+	}
+
+	private Value findDuplicates(final GeometryManager index, final double tolerance) throws QueryException {
+		final DuplicateFinder finder = new DuplicateFinder(tolerance, queryContext);
+		final List<List<IndexEntry>> groups = finder
+				.find(SpatialJoin.loadAll(index.rtree(), loader(index), queryContext));
+		final ValueBuilder vb = new ValueBuilder();
+		for (final List<IndexEntry> group : groups) {
+			final DBNode[] nodes = new DBNode[group.size()];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = toNode(group.get(i));
 			}
-			logMemUsage("GmlGeoX#search " + count + ". Hits: " + nodelist.size());
+			vb.add(Array.from(nodes));
+		}
+		return vb.value();
+	}
 
-			return nodelist.toArray();
+	/**
+	 * Compares the features of two named indexes, for example of an original
+	 * and a corrected dataset, by their ids.
+	 * <p>
+	 * A feature whose id is only contained in the second index has been
+	 * added, a feature whose id is only contained in the first index has been
+	 * removed. The geometry of a feature that is contained in both indexes has
+	 * changed if its bounding boxes in the indexes differ, or otherwise if the
+	 * fingerprints of its normalized geometries differ; see
+	 * {@link #findDuplicates(Object)} for the normalization. The geometries
+	 * are taken from the geometry cache where possible. Features without an
+	 * id are ignored.
+	 * <p>
+	 * The result is a map with the entries 'added', 'removed' and 'changed',
+	 * each with the sorted ids of the respective features. Expensive checks
+	 * of a corrected dataset can then be restricted to the added and changed
+	 * features.
+	 *
+	 * @param indexName1
+	 *            the name of the first index
+	 * @param indexName2
+	 *            the name of the second index
+	 * @return the differences as a map
+	 * @throws QueryException
+	 *             if an index name is empty, a geometry could not be loaded or
+	 *             the query has been stopped
+	 */
+	@Requires(Permission.NONE)
+	public Value diff(final String indexName1, final String indexName2) throws QueryException {
+		final GeometryManager index1 = namedIndex(indexName1);
+		final GeometryManager index2 = namedIndex(indexName2);
+		final IndexDiff diff = new IndexDiff(queryContext);
+		diff.compare(index1.entries(), loader(index1), index2.entries(), loader(index2));
+		return org.basex.query.value.map.Map.EMPTY.put(Str.get("added"), strings(diff.added), null)
+				.put(Str.get("removed"), strings(diff.removed), null)
+				.put(Str.get("changed"), strings(diff.changed), null);
+	}
 
-		} catch (Exception e) {
-			throw new QueryException(e);
+	private static Value strings(final Collection<String> strings) {
+		final ValueBuilder vb = new ValueBuilder();
+		for (final String string : strings) {
+			vb.add(Str.get(string));
+		}
+		return vb.value();
+	}
+
+	private static ValueBuilder ids(final Collection<IndexEntry> entries) {
+		final ValueBuilder ids = new ValueBuilder();
+		for (final IndexEntry entry : entries) {
+			ids.add(Str.get(entry.id != null ? entry.id : ""));
+		}
+		return ids;
+	}
+
+	private Value toNodePairs(final List<IndexEntry[]> pairs) throws QueryException {
+		final ValueBuilder vb = new ValueBuilder();
+		for (final IndexEntry[] pair : pairs) {
+			vb.add(Array.from(toNode(pair[0]), toNode(pair[1])));
+		}
+		return vb.value();
+	}
+
+	private DBNode toNode(final IndexEntry entry) throws QueryException {
+		return new DBNode(data(entry), entry.pre);
+	}
+
+	/**
+	 * Retrieves the geometry of an indexed feature from the cache, or parses
+	 * it again from the indexed geometry node.
+	 */
+	private com.vividsolutions.jts.geom.Geometry indexedGeometry(final GeometryManager index, final IndexEntry entry)
+			throws QueryException {
+		com.vividsolutions.jts.geom.Geometry geom = entry.id != null ? index.get(entry.id) : null;
+		if (geom == null) {
+			if (entry.geometryPre < 0) {
+				throw new QueryException("The geometry of the indexed item with id '" + entry.id
+						+ "' is not cached and cannot be parsed again.");
+			}
+			final Data d = data(entry);
+			try {
+				geom = geoutils.singleObjectToJTSGeometry(new DBNode(d, entry.geometryPre));
+			} catch (Exception e) {
+				throw new QueryException(e);
+			}
+			if (entry.id != null) {
+				index.put(entry.id, geom);
+			}
 		}
+		return geom;
+	}
+
+	private SpatialJoin.GeometryLoader loader(final GeometryManager index) {
+		return entry -> indexedGeometry(index, entry);
 	}
 
 	/**
@@ -1888,7 +3778,8 @@ public class GmlGeoX extends QueryModule {
 	 * Set cache size for geometries
 	 *
 	 * @param size
-	 *            the size of the geometry cache; default is 100000
+	 *            the maximum number of geometries in the cache; by default,
+	 *            the cache is sized from the available heap
 	 * @throws QueryException
 	 */
 	@Requires(Permission.NONE)
@@ -1898,6 +3789,24 @@ public class GmlGeoX extends QueryModule {
 		}
 	}
 
+	/**
+	 * Set the cache size for the geometries of a named index. The index is
+	 * replaced by a new, empty index.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param size
+	 *            the size of the geometry cache of the index
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	public void cacheSize(String indexName, Object size) throws QueryException {
+		checkIndexName(indexName);
+		if (size instanceof BigInteger) {
+			namedIndexes.put(indexName, new GeometryManager(((BigInteger) size).intValue()));
+		}
+	}
+
 	/**
 	 * Indexes a list of id nodes (gml:id attribute of features) with their GML
 	 * geometries
@@ -1924,37 +3833,58 @@ public class GmlGeoX extends QueryModule {
 	 * @deprecated This method does not support 3D indexing, use method
 	 * {@link GmlGeoX#index(ANode, Object, ANode)} instead.
 	 * This method is removed in Version 1.3.0
+	 * <p>
+	 * If the first argument is a string, the call is
+	 * ggeo:index($indexName, $node, $id, $geometry), which indexes the item in
+	 * the named index, see {@link #index(String, ANode, Object, ANode)}.
+	 * <p>
+	 * The arguments are bound as values: BaseX would pass a copy of a database
+	 * node to an Object parameter, which cannot be resolved in the database.
 	 *
 	 * @throws QueryException
 	 */
 	@Deprecated
 	@Requires(Permission.NONE)
-	public void index(Object pre, Object dbname, Object id, Object geom) throws QueryException {
+	public void index(Value pre, Value dbname, Value id, Value geom) throws QueryException {
+		if (pre instanceof Str) {
+			// Both functions have four arguments, BaseX can only bind one of them
+			final String indexName = ((Str) pre).toJava();
+			if (!(dbname instanceof ANode && geom instanceof ANode)) {
+				throw new QueryException("The item and the geometry to index in spatial index '" + indexName
+						+ "' must be nodes.");
+			}
+			index(indexName, (ANode) dbname, id.toJava(), (ANode) geom);
+			return;
+		}
+		legacyIndex(pre.toJava(), dbname.toJava(), id.toJava(), geom.toJava());
+	}
+
+	@Deprecated
+	private void legacyIndex(Object pre, Object dbname, Object id, Object geom) throws QueryException {
 		// TODO remove method GmlGeoX version 1.3.0
-		if (mgr == null)
-			mgr = new GeometryManager();
+		final GeometryManager index = defaultIndex();
 
 		if (pre instanceof BigInteger && dbname instanceof String && (id instanceof BXNode || id instanceof String)
 				&& (geom instanceof BXElem || geom instanceof com.vividsolutions.jts.geom.Geometry))
 			try {
-				IndexEntry entry = new IndexEntry((String) dbname, ((BigInteger) pre).intValue());
 				String _id = id instanceof String ? (String) id : ((BXNode) id).getNodeValue();
+				IndexEntry entry = new IndexEntry((String) dbname, ((BigInteger) pre).intValue(), _id);
 				com.vividsolutions.jts.geom.Geometry _geom = geom instanceof BXElem
 						? geoutils.singleObjectToJTSGeometry(geom) : ((com.vividsolutions.jts.geom.Geometry) geom);
 				Envelope env = _geom.getEnvelopeInternal();
 				if (!env.isNull()) {
 					if (env.getHeight() == 0.0 && env.getWidth() == 0.0)
-						mgr.index(entry, Geometries.point(env.getMinX(), env.getMinY()));
+						index.index(entry, Geometries.point(env.getMinX(), env.getMinY()));
 					else
-						mgr.index(entry,
+						index.index(entry,
 								Geometries.rectangle(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY()));
 
 					// add to geometry cache
 					if (_id != null)
-						mgr.put(_id, _geom);
+						index.put(_id, _geom);
 				}
 
-				int size = mgr.indexSize();
+				int size = index.indexSize();
 				if (size % 5000 == 0)
 					logMemUsage("GmlGeoX#index progress: " + size);
 
@@ -1991,42 +3921,260 @@ public class GmlGeoX extends QueryModule {
 	 */
 	@Requires(Permission.NONE)
 	public void index(final ANode node, final Object objId, final ANode geometry) throws QueryException {
-		if ((objId instanceof BXNode || objId instanceof String)) {
+		indexOrRecord(defaultIndex(), node, objId, geometry);
+	}
+
+	/**
+	 * Indexes an item with its GML geometry in a named index. Each named index
+	 * has its own r-tree and geometry cache; all other functions that take an
+	 * index name only use the items of that index.
+	 * <p>
+	 * BaseX binds this function through
+	 * {@link #index(Value, Value, Value, Value)}, which has the same
+	 * number of arguments.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param node
+	 *            represents the indexed item node (typically the gml:id of
+	 *            GML feature elements)
+	 * @param objId
+	 *            represents the id string of the item that should be indexed,
+	 *            typically the gml:id of GML feature elements; must be String
+	 *            instances
+	 * @param geometry
+	 *            represents the GML geometry to index
+	 *
+	 * @throws QueryException
+	 */
+	void index(final String indexName, final ANode node, final Object objId, final ANode geometry)
+			throws QueryException {
+		indexOrRecord(namedIndex(indexName), node, objId, geometry);
+	}
 
-			if (mgr == null) {
-				mgr = new GeometryManager();
+	/**
+	 * Index an item; in lenient mode, a geometry error is recorded instead of
+	 * raised
+	 */
+	private void indexOrRecord(final GeometryManager index, final ANode node, final Object objId,
+			final ANode geometry) throws QueryException {
+		try {
+			index(index, node, objId, geometry);
+		} catch (final GeometryError e) {
+			if (!lenient) {
+				throw e;
 			}
+			indexErrors.add(e.toValue(objId instanceof String ? Str.get((String) objId)
+					: Str.get(((BXNode) objId).getNodeValue())));
+		}
+	}
+
+	private void index(final GeometryManager index, final ANode node, final Object objId, final ANode geometry)
+			throws QueryException {
+		checkWritable(index);
+		if ((objId instanceof BXNode || objId instanceof String)) {
 
 			try {
 				final com.vividsolutions.jts.geom.Geometry _geom = geoutils.singleObjectToJTSGeometry(geometry);
 				final Envelope env = _geom.getEnvelopeInternal();
 				if (!env.isNull()) {
-					final IndexEntry entry = new IndexEntry(node);
+					final String id = objId instanceof String ? (String) objId : ((BXNode) objId).getNodeValue();
+					final double[] z = zRange(_geom);
+					final IndexEntry entry = new IndexEntry(node, id, geometry, z[0], z[1]);
+					recordStamp(index, node.data());
 					if (env.getHeight() == 0.0 && env.getWidth() == 0.0) {
-						mgr.index(entry, Geometries.point(env.getMinX(), env.getMinY()));
+						index.index(entry, Geometries.point(env.getMinX(), env.getMinY()));
 					} else {
-						mgr.index(entry,
+						index.index(entry,
 								Geometries.rectangle(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY()));
 					}
 
 					// add to geometry cache
-					final String id = objId instanceof String ? (String) objId : ((BXNode) objId).getNodeValue();
 					if (id != null) {
-						mgr.put(id, _geom);
+						index.put(id, _geom);
 					}
 				}
 
-				if (debug && mgr.indexSize() % 5000 == 0) {
-					logMemUsage("GmlGeoX#index progress: " + mgr.indexSize());
+				if (debug && index.indexSize() % 5000 == 0) {
+					logMemUsage("GmlGeoX#index progress: " + index.indexSize());
 				}
+			} catch (final QueryException | JobException e) {
+				// Not caused by the geometry, e.g. the query has been stopped
+				throw e;
+			} catch (final RuntimeException e) {
+				if (!GeometryError.isDataError(e)) {
+					// A bug, not caused by the geometry
+					throw e;
+				}
+				throw GeometryError.of(e);
 			} catch (final Exception e) {
-				if (e instanceof XMLParsingException) {
-					// otherwise the stacktrace "<< is empty >>" is included
-					throw new QueryException(e.getMessage());
+				throw GeometryError.of(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the minimum and maximum z coordinate of a geometry, both NaN if
+	 * the geometry has no z coordinates
+	 */
+	private static double[] zRange(final com.vividsolutions.jts.geom.Geometry geom) {
+		final double[] z = {Double.NaN, Double.NaN};
+		geom.apply((CoordinateFilter) c -> {
+			if (!Double.isNaN(c.z)) {
+				z[0] = Double.isNaN(z[0]) ? c.z : Math.min(z[0], c.z);
+				z[1] = Double.isNaN(z[1]) ? c.z : Math.max(z[1], c.z);
+			}
+		});
+		return z;
+	}
+
+	/**
+	 * Sets the lenient mode. In lenient mode, the functions
+	 * {@link #index(ANode, Object, ANode)} and
+	 * {@link #index(String, ANode, Object, ANode)} do not raise an error if
+	 * the geometry of an item cannot be indexed. The error is recorded
+	 * instead and can be retrieved with {@link #indexErrors()}. The lenient
+	 * mode is off by default.
+	 *
+	 * @param lenient
+	 *            <code>true</code> to switch the lenient mode on
+	 */
+	@Requires(Permission.NONE)
+	public void setLenient(final boolean lenient) {
+		this.lenient = lenient;
+	}
+
+	/**
+	 * Returns the errors recorded by the index functions in lenient mode, see
+	 * {@link #setLenient(boolean)}.
+	 *
+	 * @return the errors, in the order in which they occurred; each error is
+	 *         a map with the entries 'code', 'message' and 'id'
+	 */
+	@Requires(Permission.NONE)
+	public Value indexErrors() {
+		final ValueBuilder vb = new ValueBuilder();
+		synchronized (indexErrors) {
+			for (final Value error : indexErrors) {
+				vb.add(error);
+			}
+		}
+		return vb.value();
+	}
+
+	/**
+	 * Indexes a sequence of features with their first GML geometry.
+	 * <p>
+	 * The geometry of a feature is the first descendant element in the GML
+	 * namespace whose local name is one of the registered GML geometry names,
+	 * see {@link #registerGmlGeometry(String)}. The feature is indexed with its
+	 * gml:id. Features without geometry are skipped, features with a geometry
+	 * but without gml:id are reported as errors.
+	 * <p>
+	 * Features that cannot be indexed do not stop the indexing, their errors
+	 * are returned instead.
+	 *
+	 * @param features
+	 *            the feature nodes
+	 * @return a map with the errors: the key is the gml:id of the feature, or
+	 *         its position in the sequence if it has no gml:id, and the value
+	 *         is a map with the entries 'code', 'message' and, if the feature
+	 *         has a gml:id, 'id'; the map is empty if all features have been
+	 *         indexed
+	 * @throws QueryException
+	 *             if an item is not a database node
+	 */
+	@Requires(Permission.NONE)
+	public Value indexAll(final Value features) throws QueryException {
+		return indexAll(defaultIndex(), features);
+	}
+
+	/**
+	 * Indexes a sequence of features with their first GML geometry in a named
+	 * index, see {@link #indexAll(Value)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param features
+	 *            the feature nodes
+	 * @return a map with the errors, see {@link #indexAll(Value)}
+	 * @throws QueryException
+	 *             if the index name is empty or an item is not a database
+	 *             node
+	 */
+	@Requires(Permission.NONE)
+	public Value indexAll(final String indexName, final Value features) throws QueryException {
+		return indexAll(namedIndex(indexName), features);
+	}
+
+	private Value indexAll(final GeometryManager index, final Value features) throws QueryException {
+		checkWritable(index);
+		for (final Item item : features) {
+			if (!(item instanceof DBNode)) {
+				throw new QueryException("Only feature nodes of a database can be indexed.");
+			}
+		}
+		final byte[][] geometryNames = geometryNames();
+		org.basex.query.value.map.Map errors = org.basex.query.value.map.Map.EMPTY;
+		long position = 0;
+		for (final Item item : features) {
+			position++;
+			final ANode feature = (ANode) item;
+			final ANode geometry = firstGeometry(feature, geometryNames);
+			if (geometry == null) {
+				continue;
+			}
+			final String id = gmlId(feature);
+			if (id == null) {
+				errors = errors.put(Int.get(position), MISSING_ID.toValue(null), null);
+				continue;
+			}
+			try {
+				index(index, feature, id, geometry);
+			} catch (final GeometryError e) {
+				final Str key = Str.get(id);
+				errors = errors.put(key, e.toValue(key), null);
+			}
+		}
+		return errors;
+	}
+
+	private byte[][] geometryNames() {
+		final byte[][] geometryNames = new byte[gmlGeometries.size()][];
+		int n = 0;
+		for (final String name : gmlGeometries) {
+			geometryNames[n++] = name.getBytes();
+		}
+		return geometryNames;
+	}
+
+	private static String gmlId(final ANode feature) {
+		for (final ANode attribute : feature.attributes()) {
+			final QNm name = attribute.qname();
+			if (Arrays.equals(idB, name.local()) && isGmlNamespace(name.uri())) {
+				return new String(attribute.string());
+			}
+		}
+		return null;
+	}
+
+	private static ANode firstGeometry(final ANode feature, final byte[][] geometryNames) {
+		for (final ANode descendant : feature.descendant()) {
+			if (descendant.type != NodeType.ELM) {
+				continue;
+			}
+			final QNm qname = descendant.qname();
+			for (final byte[] name : geometryNames) {
+				if (Arrays.equals(name, qname.local()) && isGmlNamespace(qname.uri())) {
+					return descendant;
 				}
-				throw new QueryException(e);
 			}
 		}
+		return null;
+	}
+
+	private static boolean isGmlNamespace(final byte[] uri) {
+		return Arrays.equals(gml32NamespaceB, uri) || Arrays.equals(gml31NamespaceB, uri);
 	}
 
 	/**
@@ -2080,13 +4228,41 @@ public class GmlGeoX extends QueryModule {
 	@Deterministic
 	public com.vividsolutions.jts.geom.Geometry getOrCacheGeometry(final Object id, final Object defgeom)
 			throws QueryException {
+		return getOrCacheGeometry(defaultIndex(), id, defgeom);
+	}
+
+	/**
+	 * Retrieve the geometry of an item as a JTS geometry, using the geometry
+	 * cache of a named index, see
+	 * {@link #getOrCacheGeometry(Object, Object)}.
+	 *
+	 * @param indexName
+	 *            the name of the index
+	 * @param id
+	 *            the id for which the geometry should be retrieved, typically a
+	 *            gml:id of a GML feature element; must be a String or BXNode
+	 *            instance
+	 * @param defgeom
+	 *            represents the default GML geometry, if the geometry is not
+	 *            cached; must be a BXElem instance
+	 * @return the geometry of the indexed node, or null if no geometry was
+	 *         found
+	 *
+	 * @throws QueryException
+	 */
+	@Requires(Permission.NONE)
+	@Deterministic
+	public com.vividsolutions.jts.geom.Geometry getOrCacheGeometry(final String indexName, final Object id,
+			final Object defgeom) throws QueryException {
+		return getOrCacheGeometry(namedIndex(indexName), id, defgeom);
+	}
+
+	private com.vividsolutions.jts.geom.Geometry getOrCacheGeometry(final GeometryManager index, final Object id,
+			final Object defgeom) throws QueryException {
 		if (debug && ++count2 % 5000 == 0) {
 			logMemUsage("GmlGeoX#getGeometry.start " + count2);
 		}
 
-		if (mgr == null)
-			mgr = new GeometryManager();
-
 		final String idx;
 		if (id instanceof String) {
 			idx = (String) id;
@@ -2096,7 +4272,7 @@ public class GmlGeoX extends QueryModule {
 			throw new QueryException(
 					"Failure to get geometry. An id uses an incorrect type: " + id.getClass().getCanonicalName());
 
-		com.vividsolutions.jts.geom.Geometry geom = mgr.get(idx);
+		com.vividsolutions.jts.geom.Geometry geom = index.get(idx);
 		if (geom == null) {
 			if (!(defgeom instanceof BXElem || defgeom instanceof com.vividsolutions.jts.geom.Geometry)) {
 				throw new QueryException(
@@ -2107,12 +4283,12 @@ public class GmlGeoX extends QueryModule {
 				geom = defgeom instanceof BXElem ? geoutils.singleObjectToJTSGeometry(defgeom)
 						: ((com.vividsolutions.jts.geom.Geometry) defgeom);
 				if (geom != null)
-					mgr.put(idx, geom);
+					index.put(idx, geom);
 			} catch (Exception e) {
 				throw new QueryException(e);
 			}
-			if (debug && mgr.getMissCount() % 10000 == 0) {
-				LOGGER.debug("Cache misses: " + mgr.getMissCount() + " of " + mgr.getCount());
+			if (debug && index.getMissCount() % 10000 == 0) {
+				LOGGER.debug("Cache misses: " + index.getMissCount() + " of " + index.getCount());
 			}
 		}
 
@@ -36,14 +36,12 @@ import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
 
 import org.basex.api.dom.BXElem;
 import org.basex.api.dom.BXNode;
-import org.basex.query.QueryException;
 import org.basex.query.QueryIOException;
 import org.basex.query.value.Value;
 import org.basex.query.value.item.Item;
 import org.basex.query.value.item.Jav;
 import org.basex.query.value.node.ANode;
 import org.deegree.cs.coordinatesystems.ICRS;
-import org.deegree.cs.persistence.CRSManager;
 import org.deegree.geometry.Geometry;
 import org.deegree.geometry.composite.CompositeCurve;
 import org.deegree.geometry.composite.CompositeGeometry;
@@ -472,7 +470,7 @@ public class GmlGeoXUtils {
 
 		} else {
 
-			throw new QueryException(
+			throw new UnsupportedGeometryTypeException(
 					"Computation of JTS geometry for deegree geometry type '"
 							+ geom.getClass().getName()
 							+ "' is not supported.");
@@ -635,12 +633,7 @@ public class GmlGeoXUtils {
 		GMLStreamReader gmlStream = GMLInputFactory
 				.createGMLStreamReader(gmlVersion, xmlStream);
 
-		final ICRS defaultCRS;
-		if (srsName != null) {
-			defaultCRS = CRSManager.getCRSRef(srsName);
-		} else {
-			defaultCRS = null;
-		}
+		final ICRS defaultCRS = CRSReferenceCache.getCRSRef(srsName);
 
 		gmlStream.setDefaultCRS(defaultCRS);
 
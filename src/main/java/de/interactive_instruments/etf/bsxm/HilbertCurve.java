@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import com.github.davidmoten.rtree.geometry.Rectangle;
+
+/**
+ * Maps points to their position on a Hilbert curve that fills an extent.
+ * <p>
+ * Points that are close to each other on the curve are also close to each other in space, so
+ * features that are processed in the order of the curve are processed together with their
+ * neighbours. The extent is divided into a grid of 2<sup>16</sup> by 2<sup>16</sup> cells.
+ * </p>
+ */
+final class HilbertCurve {
+
+	private static final int ORDER = 16;
+	private static final int SIDE = 1 << ORDER;
+
+	private final double minX;
+	private final double minY;
+	private final double scaleX;
+	private final double scaleY;
+
+	/**
+	 * @param extent the extent filled by the curve
+	 */
+	HilbertCurve(final Rectangle extent) {
+		this.minX = extent.x1();
+		this.minY = extent.y1();
+		this.scaleX = extent.x2() > extent.x1() ? (SIDE - 1) / ((double) extent.x2() - extent.x1()) : 0;
+		this.scaleY = extent.y2() > extent.y1() ? (SIDE - 1) / ((double) extent.y2() - extent.y1()) : 0;
+	}
+
+	/**
+	 * @param rectangle a rectangle in the extent
+	 * @return the position of the centre of the rectangle on the curve
+	 */
+	long index(final Rectangle rectangle) {
+		return index(((double) rectangle.x1() + rectangle.x2()) / 2, ((double) rectangle.y1() + rectangle.y2()) / 2);
+	}
+
+	/**
+	 * @param x the x coordinate of a point in the extent
+	 * @param y the y coordinate of a point in the extent
+	 * @return the position of the point on the curve; points outside of the extent are moved to its
+	 *         boundary
+	 */
+	long index(final double x, final double y) {
+		return index(cell(x, minX, scaleX), cell(y, minY, scaleY));
+	}
+
+	private static int cell(final double value, final double min, final double scale) {
+		return (int) Math.max(0, Math.min(SIDE - 1, Math.round((value - min) * scale)));
+	}
+
+	private static long index(int x, int y) {
+		long d = 0;
+		for (int s = SIDE / 2; s > 0; s /= 2) {
+			final int rx = (x & s) > 0 ? 1 : 0;
+			final int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// Rotate the quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = SIDE - 1 - x;
+					y = SIDE - 1 - y;
+				}
+				final int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+import de.interactive_instruments.etf.bsxm.SpatialJoin.GeometryLoader;
+
+/**
+ * Compares the features of two spatial indexes by their ids.
+ * <p>
+ * A feature that is only contained in the second index has been added, a feature that is only
+ * contained in the first index has been removed. The geometry of a feature that is contained in both
+ * indexes has changed if its bounding boxes or height intervals in the indexes differ. Otherwise the
+ * geometries are loaded and their fingerprints, see {@link GeometryFingerprint}, are computed and
+ * compared in parallel. Geometries that only differ in the order of their components or the
+ * orientation and start point of their rings are not changed.
+ * </p>
+ * <p>
+ * Features without an id cannot be matched and are ignored. If an id occurs more than once in an
+ * index, the first of its features in the order of the r-tree is compared.
+ * </p>
+ */
+final class IndexDiff {
+
+	// Number of compared features after which the query is checked for a timeout
+	private static final int CHECK_STOP_INTERVAL = 10000;
+
+	final List<String> added = new ArrayList<>();
+	final List<String> removed = new ArrayList<>();
+	final List<String> changed = new ArrayList<>();
+
+	private final Job job;
+
+	/**
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	IndexDiff(final Job job) {
+		this.job = job;
+	}
+
+	/**
+	 * Compare two indexes. The ids of the added, removed and changed features are sorted.
+	 *
+	 * @param entries1 the entries of the first index
+	 * @param loader1 provides the geometries of the first index
+	 * @param entries2 the entries of the second index
+	 * @param loader2 provides the geometries of the second index
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	void compare(final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries1,
+			final GeometryLoader loader1,
+			final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries2,
+			final GeometryLoader loader2) throws QueryException {
+		final Map<String, Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> byId = byId(entries2);
+		final List<IndexEntry> candidates1 = new ArrayList<>();
+		final List<IndexEntry> candidates2 = new ArrayList<>();
+		final Map<String, Boolean> matched = new HashMap<>();
+		int compared = 0;
+		for (final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry1 : entries1) {
+			final String id = entry1.value().id;
+			if (id == null || id.isEmpty() || matched.putIfAbsent(id, Boolean.TRUE) != null) {
+				continue;
+			}
+			if (++compared % CHECK_STOP_INTERVAL == 0) {
+				job.checkStop();
+			}
+			final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry2 = byId.get(id);
+			if (entry2 == null) {
+				removed.add(id);
+			} else if (!sameBounds(entry1, entry2)) {
+				changed.add(id);
+			} else {
+				candidates1.add(entry1.value());
+				candidates2.add(entry2.value());
+			}
+		}
+		for (final String id : byId.keySet()) {
+			if (!matched.containsKey(id)) {
+				added.add(id);
+			}
+		}
+
+		// The geometries are loaded on the query thread, only the fingerprints are computed in parallel
+		final List<Geometry> geometries1 = new ArrayList<>(candidates1.size());
+		final List<Geometry> geometries2 = new ArrayList<>(candidates2.size());
+		for (int i = 0; i < candidates1.size(); i++) {
+			if ((i + 1) % CHECK_STOP_INTERVAL == 0) {
+				job.checkStop();
+			}
+			geometries1.add(loader1.load(candidates1.get(i)));
+			geometries2.add(loader2.load(candidates2.get(i)));
+		}
+		final List<Boolean> different = IntStream.range(0, candidates1.size()).parallel()
+				.mapToObj(i -> isDifferent(geometries1.get(i), geometries2.get(i))).collect(Collectors.toList());
+		job.checkStop();
+		for (int i = 0; i < different.size(); i++) {
+			if (different.get(i)) {
+				changed.add(candidates1.get(i).id);
+			}
+		}
+
+		Collections.sort(added);
+		Collections.sort(removed);
+		Collections.sort(changed);
+	}
+
+	private static Map<String, Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> byId(
+			final List<Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> entries) {
+		final Map<String, Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry>> byId = new HashMap<>(
+				entries.size() * 2);
+		for (final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry : entries) {
+			final String id = entry.value().id;
+			if (id != null && !id.isEmpty()) {
+				byId.putIfAbsent(id, entry);
+			}
+		}
+		return byId;
+	}
+
+	private static boolean sameBounds(final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry1,
+			final Entry<IndexEntry, com.github.davidmoten.rtree.geometry.Geometry> entry2) {
+		final Rectangle r1 = entry1.geometry().mbr();
+		final Rectangle r2 = entry2.geometry().mbr();
+		return r1.x1() == r2.x1() && r1.y1() == r2.y1() && r1.x2() == r2.x2() && r1.y2() == r2.y2()
+				&& Double.compare(entry1.value().minZ, entry2.value().minZ) == 0
+				&& Double.compare(entry1.value().maxZ, entry2.value().maxZ) == 0;
+	}
+
+	private static boolean isDifferent(final Geometry geometry1, final Geometry geometry2) {
+		final GeometryFingerprint fingerprint1 = GeometryFingerprint.of(geometry1);
+		final GeometryFingerprint fingerprint2 = GeometryFingerprint.of(geometry2);
+		return fingerprint1.shape != fingerprint2.shape || fingerprint1.coordinates != fingerprint2.coordinates;
+	}
+}
@@ -15,6 +15,7 @@
  */
 package de.interactive_instruments.etf.bsxm;
 
+import org.basex.data.Data;
 import org.basex.query.value.node.ANode;
 import org.basex.query.value.node.DBNode;
 
@@ -28,15 +29,57 @@ import org.basex.query.value.node.DBNode;
 class IndexEntry {
 	final int pre;
 	final String dbname;
+	// The data of a node that is not stored in a database, e.g. a parsed document, which cannot be
+	// opened by its name; null for a database node
+	final Data document;
+	final String id;
+	final int geometryPre;
+	// Height interval of the geometry, NaN if the geometry has no z coordinates
+	final double minZ;
+	final double maxZ;
 
 	/**
 	 * Create Index Entry from database node
 	 *
 	 * @param node Database node
+	 * @param id the id of the geometry in the geometry cache, may be <code>null</code>
+	 * @param geometry the node of the indexed geometry, if it is in the same database as the indexed node
+	 *        it can be re-parsed if it is not cached
 	 */
-	IndexEntry(final ANode node) {
+	IndexEntry(final ANode node, final String id, final ANode geometry) {
+		this(node, id, geometry, Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * Create Index Entry from database node, with the height interval of the geometry
+	 *
+	 * @param node Database node
+	 * @param id the id of the geometry in the geometry cache, may be <code>null</code>
+	 * @param geometry the node of the indexed geometry, if it is in the same database as the indexed node
+	 *        it can be re-parsed if it is not cached
+	 * @param minZ the minimum z coordinate of the geometry, NaN if it has no z coordinates
+	 * @param maxZ the maximum z coordinate of the geometry, NaN if it has no z coordinates
+	 */
+	IndexEntry(final ANode node, final String id, final ANode geometry, final double minZ, final double maxZ) {
 		pre = ((DBNode) node).pre();
 		dbname = node.data().meta.name;
+		document = node.data().inMemory() ? node.data() : null;
+		this.id = id;
+		geometryPre = geometry instanceof DBNode && geometry.data() == node.data() ? ((DBNode) geometry).pre() : -1;
+		this.minZ = minZ;
+		this.maxZ = maxZ;
+	}
+
+	/**
+	 * Checks if the height interval of the geometry overlaps with an interval. A geometry without z
+	 * coordinates overlaps with every interval.
+	 *
+	 * @param minZ the minimum of the interval
+	 * @param maxZ the maximum of the interval
+	 * @return <code>true</code> if the intervals overlap, <code>false</code> otherwise
+	 */
+	boolean overlapsZ(final double minZ, final double maxZ) {
+		return Double.isNaN(this.minZ) || (this.minZ <= maxZ && this.maxZ >= minZ);
 	}
 
 	/**
@@ -44,12 +87,18 @@ class IndexEntry {
 	 *
 	 * @param dbn database name as String
 	 * @param p pre value as int
+	 * @param id the id of the geometry in the geometry cache, may be <code>null</code>
 	 * @deprecated removed in Version 1.3.0
 	 */
 	@Deprecated
-	IndexEntry(final String dbn, final int p) {
+	IndexEntry(final String dbn, final int p, final String id) {
 		// TODO remove Ctor in GmlGeoX version 1.3.0
 		pre = p;
 		dbname = dbn;
+		document = null;
+		this.id = id;
+		geometryPre = -1;
+		minZ = Double.NaN;
+		maxZ = Double.NaN;
 	}
 }
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.basex.query.QueryException;
+import org.basex.query.QueryResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM-wide registry of spatial indexes, so that an index built by one query can be used by later
+ * queries, for example by the queries of the test steps of one test run.
+ * <p>
+ * Indexes are registered by database name and index name. A query acquires a lease on an index. The
+ * first query that acquires a lease on an index owns it and builds it; the index is only available
+ * to other queries after the owner has released its lease explicitly. If the owning query ends
+ * without releasing the lease, for example because of an error, the incomplete index is discarded.
+ * A query that acquires an index while another query is still building it gets a private lease: an
+ * empty index that the query has to build itself and that is never published.
+ * </p>
+ * <p>
+ * An index is only reused if the database has not been modified since the index was registered.
+ * Indexes without leases are removed after an idle time by a background thread.
+ * </p>
+ */
+public final class IndexRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(IndexRegistry.class);
+
+	// Time in seconds after which a shared index without leases is removed, default is 600
+	public static final String ETF_INDEXREGISTRY_TTL = "etf.gmlgeox.indexregistry.ttl";
+
+	private static final long TTL = TimeUnit.SECONDS
+			.toNanos(Long.valueOf(System.getProperty(ETF_INDEXREGISTRY_TTL, "600")));
+
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+		final Thread thread = new Thread(task, "GmlGeoX index registry eviction");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final class Key {
+		private final String database;
+		private final String indexName;
+
+		private Key(final String database, final String indexName) {
+			this.database = database;
+			this.indexName = indexName;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof Key && ((Key) o).database.equals(database) && ((Key) o).indexName.equals(indexName);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * database.hashCode() + indexName.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return database + "/" + indexName;
+		}
+	}
+
+	private static final class Registration {
+		private final GeometryManager index;
+		private final long databaseStamp;
+		private int leases = 0;
+		private boolean ready = false;
+		private long idleSince;
+
+		private Registration(final GeometryManager index, final long databaseStamp) {
+			this.index = index;
+			this.databaseStamp = databaseStamp;
+		}
+	}
+
+	/**
+	 * A lease on an index, held by one query
+	 */
+	static final class Lease {
+		final String database;
+		final String indexName;
+		final GeometryManager index;
+		final boolean reused;
+		private final Key key;
+		private final Registration registration;
+		private final boolean owner;
+		private boolean released = false;
+
+		private Lease(final Key key, final Registration registration, final GeometryManager index,
+				final boolean reused, final boolean owner) {
+			this.database = key.database;
+			this.indexName = key.indexName;
+			this.key = key;
+			this.registration = registration;
+			this.index = index;
+			this.reused = reused;
+			this.owner = owner;
+		}
+
+		/**
+		 * @return <code>true</code> if the index is registered, <code>false</code> if it is a private
+		 *         index of the query, because another query is still building the index
+		 */
+		boolean isShared() {
+			return registration != null;
+		}
+	}
+
+	/**
+	 * The leases of a query. BaseX closes this resource at the end of the query, which releases the
+	 * remaining leases.
+	 */
+	public static final class Leases implements QueryResource {
+		private final List<Lease> leases = new ArrayList<>();
+
+		public Leases() {}
+
+		synchronized void add(final Lease lease) {
+			leases.add(lease);
+		}
+
+		/**
+		 * Release the lease on an index
+		 *
+		 * @return the released lease, or <code>null</code> if the query holds no lease on the index
+		 */
+		synchronized Lease release(final String database, final String indexName) {
+			for (final Iterator<Lease> it = leases.iterator(); it.hasNext();) {
+				final Lease lease = it.next();
+				if (lease.database.equals(database) && lease.indexName.equals(indexName)) {
+					it.remove();
+					IndexRegistry.release(lease, true);
+					return lease;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public synchronized void close() {
+			for (final Lease lease : leases) {
+				IndexRegistry.release(lease, false);
+			}
+			leases.clear();
+		}
+	}
+
+	private static final Map<Key, Registration> registrations = new HashMap<>();
+
+	private IndexRegistry() {}
+
+	/**
+	 * Acquire a lease on an index
+	 *
+	 * @param database name of the database
+	 * @param indexName name of the index
+	 * @param databaseStamp identifies the state of the database; an index that was registered for
+	 *        another state is not reused
+	 * @param incremental if the index was registered for another state of the database and is not
+	 *        used by other queries, it is handed over to the query to be updated, instead of being
+	 *        replaced by an empty index
+	 * @return the lease; if the index is not reused, it is empty or has to be updated, and must be
+	 *         built by the query
+	 * @throws QueryException if the database or index name is empty
+	 */
+	static synchronized Lease acquire(final String database, final String indexName, final long databaseStamp,
+			final boolean incremental) throws QueryException {
+		if (database == null || database.isEmpty() || indexName == null || indexName.isEmpty()) {
+			throw new QueryException("The database and index name of a shared index must not be empty.");
+		}
+		removeIdle();
+		final Key key = new Key(database, indexName);
+		final Registration registration = registrations.get(key);
+		if (registration != null && registration.databaseStamp == databaseStamp) {
+			if (registration.ready) {
+				registration.leases++;
+				return new Lease(key, registration, registration.index, true, false);
+			}
+			// The index is still being built by another query, use a private index that is not
+			// published
+			return new Lease(key, null, new GeometryManager(), false, false);
+		}
+		final boolean update = incremental && registration != null && registration.ready && registration.leases == 0;
+		if (registration != null) {
+			logger.debug("Database {} has been modified, the shared index {} is {}", database, key,
+					update ? "updated" : "rebuilt");
+		}
+		final Registration created = new Registration(update ? registration.index : new GeometryManager(),
+				databaseStamp);
+		created.leases++;
+		registrations.put(key, created);
+		return new Lease(key, created, created.index, false, true);
+	}
+
+	private static synchronized void release(final Lease lease, final boolean explicit) {
+		if (lease.released || lease.registration == null) {
+			return;
+		}
+		lease.released = true;
+		final Registration registration = lease.registration;
+		registration.leases--;
+		if (lease.owner) {
+			if (explicit) {
+				registration.ready = true;
+			} else if (registrations.get(lease.key) == registration) {
+				// The owner did not complete the index
+				registrations.remove(lease.key);
+			}
+		}
+		if (registration.leases == 0) {
+			registration.idleSince = System.nanoTime();
+			evictor.schedule(IndexRegistry::evictIdle, TTL + 1, TimeUnit.NANOSECONDS);
+		}
+		removeIdle();
+	}
+
+	private static synchronized void evictIdle() {
+		removeIdle();
+	}
+
+	/**
+	 * Remove all registered indexes; leases that are still held remain valid
+	 */
+	static synchronized void clear() {
+		registrations.clear();
+	}
+
+	/**
+	 * @return the number of registered indexes
+	 */
+	static synchronized int size() {
+		return registrations.size();
+	}
+
+	private static void removeIdle() {
+		final long now = System.nanoTime();
+		registrations.values()
+				.removeIf(registration -> registration.leases == 0 && now - registration.idleSince > TTL);
+	}
+}
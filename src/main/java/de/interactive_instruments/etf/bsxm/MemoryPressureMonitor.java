@@ -0,0 +1,153 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the tenured heap pool after garbage collections and notifies the registered
+ * {@link GeometryManager}s if its usage exceeds the configured threshold, so that their geometry
+ * caches can shrink before the JVM runs out of memory.
+ * <p>
+ * Only the tenured pool is watched: the eden and survivor spaces are routinely filled after a
+ * minor collection and do not indicate a memory shortage.
+ * </p>
+ * <p>
+ * The monitor is shared by all GmlGeoX instances of a JVM. Geometry managers are only weakly
+ * referenced, so they do not need to be unregistered explicitly.
+ * </p>
+ */
+final class MemoryPressureMonitor implements NotificationListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(MemoryPressureMonitor.class);
+
+	// Collection usage threshold as fraction of the maximum pool size, default is 0.8
+	public static final String ETF_GEOCACHE_GC_THRESHOLD = "etf.gmlgeox.geocache.gcthreshold";
+
+	private static final MemoryPressureMonitor INSTANCE = new MemoryPressureMonitor();
+
+	private final Set<GeometryManager> managers = Collections.newSetFromMap(
+			new WeakHashMap<GeometryManager, Boolean>());
+
+	// The tenured pool, null if it cannot be monitored
+	private final MemoryPoolMXBean tenured;
+
+	private MemoryPressureMonitor() {
+		final double threshold = Double.valueOf(System.getProperty(ETF_GEOCACHE_GC_THRESHOLD, "0.8"));
+		MemoryPoolMXBean tenuredPool = null;
+		try {
+			tenuredPool = tenuredPool();
+			if (tenuredPool != null) {
+				// Do not override a threshold that has been set by someone else
+				if (tenuredPool.getCollectionUsageThreshold() == 0) {
+					tenuredPool.setCollectionUsageThreshold((long) (tenuredPool.getUsage().getMax() * threshold));
+				}
+				((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null,
+						null);
+			}
+		} catch (final Exception e) {
+			logger.warn("Memory pressure monitoring of the geometry cache is not available: {}", e.getMessage());
+			tenuredPool = null;
+		}
+		tenured = tenuredPool;
+	}
+
+	/**
+	 * The tenured pool is the heap pool that supports both a usage and a collection usage threshold;
+	 * the eden and survivor spaces do not support a usage threshold.
+	 */
+	private static MemoryPoolMXBean tenuredPool() {
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+				return pool;
+			}
+		}
+		return null;
+	}
+
+	static MemoryPressureMonitor get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Register a geometry manager that will be notified when memory gets scarce
+	 *
+	 * @param manager the geometry manager
+	 */
+	void register(final GeometryManager manager) {
+		synchronized (managers) {
+			managers.add(manager);
+		}
+	}
+
+	/**
+	 * Returns the registered geometry managers that have not yet been garbage collected
+	 *
+	 * @return a copy of the registered geometry managers
+	 */
+	List<GeometryManager> managers() {
+		synchronized (managers) {
+			return new ArrayList<>(managers);
+		}
+	}
+
+	/**
+	 * Check if the usage of the tenured pool still exceeds the threshold after the last garbage
+	 * collection
+	 *
+	 * @return true if memory is scarce, false otherwise
+	 */
+	boolean isUnderPressure() {
+		return tenured != null && tenured.isCollectionUsageThresholdExceeded();
+	}
+
+	/**
+	 * Report the maximum heap size that the geometry caches may take into account
+	 *
+	 * @return maximum heap size in bytes
+	 */
+	static long maxHeap() {
+		final long max = Runtime.getRuntime().maxMemory();
+		return max == Long.MAX_VALUE ? Runtime.getRuntime().totalMemory() : max;
+	}
+
+	@Override
+	public void handleNotification(final Notification notification, final Object handback) {
+		if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+			final List<GeometryManager> toNotify = managers();
+			logger.debug("Memory collection threshold exceeded, notifying {} geometry caches", toNotify.size());
+			for (final GeometryManager manager : toNotify) {
+				manager.onMemoryPressure();
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.Leaf;
+import com.github.davidmoten.rtree.Node;
+import com.github.davidmoten.rtree.NonLeaf;
+import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+import de.interactive_instruments.etf.bsxm.SpatialJoin.GeometryLoader;
+
+/**
+ * Finds the indexed features that are nearest to a geometry, or within a distance of it.
+ * <p>
+ * The r-tree is searched best-first: nodes and entries are kept in a priority queue, ordered by the
+ * distance between their bounding box and the envelope of the query geometry, which is a lower bound
+ * of the distance of the geometries. When an entry is taken from the queue for the first time, the
+ * exact distance is computed with JTS and the entry is put back into the queue with that distance.
+ * When it is taken again, no other feature can be closer. The search stops as soon as enough
+ * features have been found, or the next lower bound exceeds the maximum distance.
+ * </p>
+ */
+final class NearestNeighbourSearch<S extends com.github.davidmoten.rtree.geometry.Geometry> {
+
+	// Number of queue elements after which the query is checked for a timeout
+	private static final int CHECK_STOP_INTERVAL = 10000;
+
+	/**
+	 * A feature found by the search, with its distance to the query geometry
+	 */
+	static final class Neighbour {
+		final IndexEntry entry;
+		final double distance;
+
+		private Neighbour(final IndexEntry entry, final double distance) {
+			this.entry = entry;
+			this.distance = distance;
+		}
+	}
+
+	private static final class Candidate<S extends com.github.davidmoten.rtree.geometry.Geometry> {
+		private final double distance;
+		private final Node<IndexEntry, S> node;
+		private final IndexEntry entry;
+		private final boolean exact;
+
+		private Candidate(final double distance, final Node<IndexEntry, S> node, final IndexEntry entry,
+				final boolean exact) {
+			this.distance = distance;
+			this.node = node;
+			this.entry = entry;
+			this.exact = exact;
+		}
+	}
+
+	private final RTree<IndexEntry, S> index;
+	private final GeometryLoader loader;
+	private final Job job;
+
+	/**
+	 * @param index the spatial index
+	 * @param loader provides the geometries of the indexed features
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	NearestNeighbourSearch(final RTree<IndexEntry, S> index, final GeometryLoader loader, final Job job) {
+		this.index = index;
+		this.loader = loader;
+		this.job = job;
+	}
+
+	/**
+	 * Find the nearest features
+	 *
+	 * @param geometry the query geometry
+	 * @param k the maximum number of features
+	 * @return up to k features, ordered by distance
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	List<Neighbour> nearest(final Geometry geometry, final int k) throws QueryException {
+		return search(geometry, k, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Find all features within a distance
+	 *
+	 * @param geometry the query geometry
+	 * @param maxDistance the maximum distance, inclusive
+	 * @return the features, ordered by distance
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	List<Neighbour> withinDistance(final Geometry geometry, final double maxDistance) throws QueryException {
+		return search(geometry, Integer.MAX_VALUE, maxDistance);
+	}
+
+	private List<Neighbour> search(final Geometry geometry, final int k, final double maxDistance)
+			throws QueryException {
+		final List<Neighbour> result = new ArrayList<>();
+		if (k <= 0 || geometry.isEmpty() || !index.root().isPresent()) {
+			return result;
+		}
+		final Envelope envelope = geometry.getEnvelopeInternal();
+		final PriorityQueue<Candidate<S>> queue = new PriorityQueue<>((c1, c2) -> {
+			final int c = Double.compare(c1.distance, c2.distance);
+			if (c != 0) {
+				return c;
+			}
+			// Prefer exact distances, then order by feature for a stable result
+			if (c1.exact != c2.exact) {
+				return c1.exact ? -1 : 1;
+			}
+			if (c1.entry != null && c2.entry != null) {
+				return SpatialJoin.ENTRY_ORDER.compare(c1.entry, c2.entry);
+			}
+			return c1.entry != null ? -1 : (c2.entry != null ? 1 : 0);
+		});
+		final Node<IndexEntry, S> root = index.root().get();
+		queue.add(new Candidate<>(distance(envelope, root.geometry().mbr()), root, null, false));
+		long polled = 0;
+		while (!queue.isEmpty() && result.size() < k) {
+			if (++polled % CHECK_STOP_INTERVAL == 0) {
+				job.checkStop();
+			}
+			final Candidate<S> candidate = queue.poll();
+			if (candidate.distance > maxDistance) {
+				break;
+			}
+			if (candidate.exact) {
+				result.add(new Neighbour(candidate.entry, candidate.distance));
+			} else if (candidate.entry != null) {
+				final Geometry entryGeometry = loader.load(candidate.entry);
+				if (!entryGeometry.isEmpty()) {
+					queue.add(new Candidate<>(geometry.distance(entryGeometry), null, candidate.entry, true));
+				}
+			} else if (candidate.node instanceof Leaf) {
+				for (final Entry<IndexEntry, S> entry : ((Leaf<IndexEntry, S>) candidate.node).entries()) {
+					final double distance = distance(envelope, entry.geometry().mbr());
+					if (distance <= maxDistance) {
+						queue.add(new Candidate<>(distance, null, entry.value(), false));
+					}
+				}
+			} else {
+				for (final Node<IndexEntry, S> child : ((NonLeaf<IndexEntry, S>) candidate.node).children()) {
+					final double distance = distance(envelope, child.geometry().mbr());
+					if (distance <= maxDistance) {
+						queue.add(new Candidate<>(distance, child, null, false));
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lower bound of the distance between an envelope and an r-tree rectangle. The rectangle has float
+	 * precision, so it is widened by one ulp to remain a lower bound.
+	 */
+	private static double distance(final Envelope envelope, final Rectangle rectangle) {
+		final Envelope mbr = new Envelope(rectangle.x1() - Math.ulp(rectangle.x1()),
+				rectangle.x2() + Math.ulp(rectangle.x2()), rectangle.y1() - Math.ulp(rectangle.y1()),
+				rectangle.y2() + Math.ulp(rectangle.y2()));
+		return envelope.distance(mbr);
+	}
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Lineal;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.distance.DistanceOp;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+/**
+ * Analyses the connectivity of a network of curves.
+ * <p>
+ * The end points of all curves are snapped into nodes: an end point that lies within the tolerance of
+ * an existing node is merged into that node, otherwise it creates a new node. The nodes are kept in a
+ * hashed grid with the tolerance as cell size, so that only the neighbouring cells have to be
+ * searched. Each curve is an edge between its start and end node, and the connected components are
+ * computed with a union-find structure. All parts of a multi curve belong to the same component.
+ * </p>
+ * <p>
+ * A node with a single edge is dangling. A near miss is a dangling node and another node that are
+ * not connected directly by an edge, but lie within the near miss distance; it typically indicates a
+ * missing snap. Near misses between nodes are found with a second hashed grid, with the near miss
+ * distance as cell size. A dangling node that lies within the near miss distance of the interior of
+ * another curve is a near miss as well; it typically indicates an undershoot at a T-junction. The
+ * curves near a dangling node are found with an STR-tree of the envelopes of the curves.
+ * </p>
+ */
+final class NetworkAnalysis {
+
+	// Number of curves after which the query is checked for a timeout
+	private static final int CHECK_STOP_INTERVAL = 10000;
+
+	/**
+	 * A node of the network, with the features whose curves start or end at the node
+	 */
+	static final class NetworkNode {
+		final Coordinate coordinate;
+		final Set<IndexEntry> features = new LinkedHashSet<>(2);
+		private int degree = 0;
+		// The other node of the first edge, used to exclude the own edge from near misses
+		private int neighbour = -1;
+
+		private NetworkNode(final Coordinate coordinate) {
+			this.coordinate = coordinate;
+		}
+
+		boolean isDangling() {
+			return degree == 1;
+		}
+	}
+
+	/**
+	 * A dangling node and another node or curve that are not connected, but lie close to each other
+	 */
+	static final class NearMiss {
+		final NetworkNode node;
+		// The features at the other node, or the feature of the other curve
+		final Set<IndexEntry> features;
+		// The other node, or the nearest point in the interior of the other curve
+		final Coordinate coordinate;
+		final double distance;
+
+		private NearMiss(final NetworkNode node, final Set<IndexEntry> features, final Coordinate coordinate,
+				final double distance) {
+			this.node = node;
+			this.features = features;
+			this.coordinate = coordinate;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * A curve between two nodes
+	 */
+	private static final class Edge {
+		final IndexEntry feature;
+		final LineString line;
+		final int start;
+		final int end;
+
+		private Edge(final IndexEntry feature, final LineString line, final int start, final int end) {
+			this.feature = feature;
+			this.line = line;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private final double tolerance;
+	private final double nearMissDistance;
+	private final Job job;
+
+	private final List<NetworkNode> nodes = new ArrayList<>();
+	private final Map<Long, List<Integer>> grid = new HashMap<>();
+	private final Map<Coordinate, Integer> exactNodes = new HashMap<>();
+	private int[] parent = new int[64];
+	private final Map<IndexEntry, Integer> featureNodes = new HashMap<>();
+	private final List<Edge> edges = new ArrayList<>();
+
+	/**
+	 * @param tolerance the distance within which end points are snapped into one node; 0 if end points
+	 *        must be identical
+	 * @param nearMissDistance the distance within which a dangling node and another node are reported
+	 *        as a near miss; 0 if near misses shall not be reported
+	 * @param job the query, checked for a timeout or interruption
+	 * @throws QueryException if the tolerance or the near miss distance is negative
+	 */
+	NetworkAnalysis(final double tolerance, final double nearMissDistance, final Job job) throws QueryException {
+		if (tolerance < 0 || Double.isNaN(tolerance)) {
+			throw new QueryException("The tolerance must not be negative, but was " + tolerance + ".");
+		}
+		if (nearMissDistance < 0 || Double.isNaN(nearMissDistance)) {
+			throw new QueryException(
+					"The near miss distance must not be negative, but was " + nearMissDistance + ".");
+		}
+		this.tolerance = tolerance;
+		this.nearMissDistance = nearMissDistance;
+		this.job = job;
+	}
+
+	/**
+	 * Add the curves of the lineal geometries of the features to the network. Other geometries are
+	 * ignored.
+	 *
+	 * @param features the features, in the order in which their end points are snapped
+	 * @param geometries the geometries of the features
+	 */
+	void addAll(final List<IndexEntry> features, final Map<IndexEntry, Geometry> geometries) {
+		int processed = 0;
+		for (final IndexEntry feature : features) {
+			final Geometry geometry = geometries.get(feature);
+			if (!(geometry instanceof Lineal)) {
+				continue;
+			}
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				final LineString line = (LineString) geometry.getGeometryN(i);
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (++processed % CHECK_STOP_INTERVAL == 0) {
+					job.checkStop();
+				}
+				final int start = node(line.getCoordinateN(0), feature);
+				final int end = node(line.getCoordinateN(line.getNumPoints() - 1), feature);
+				addEdge(start, end);
+				edges.add(new Edge(feature, line, start, end));
+				final Integer previous = featureNodes.putIfAbsent(feature, start);
+				if (previous != null) {
+					union(previous, start);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	int nodeCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return the dangling nodes, in the order in which they were created
+	 */
+	List<NetworkNode> danglingNodes() {
+		final List<NetworkNode> dangling = new ArrayList<>();
+		for (final NetworkNode node : nodes) {
+			if (node.isDangling()) {
+				dangling.add(node);
+			}
+		}
+		return dangling;
+	}
+
+	/**
+	 * @return the features of each connected component; the components are ordered by decreasing size
+	 */
+	List<List<IndexEntry>> components() {
+		final Map<Integer, List<IndexEntry>> components = new HashMap<>();
+		final List<List<IndexEntry>> ordered = new ArrayList<>();
+		for (final Map.Entry<IndexEntry, Integer> feature : featureNodes.entrySet()) {
+			components.computeIfAbsent(find(feature.getValue()), k -> {
+				final List<IndexEntry> component = new ArrayList<>();
+				ordered.add(component);
+				return component;
+			}).add(feature.getKey());
+		}
+		for (final List<IndexEntry> component : ordered) {
+			Collections.sort(component, SpatialJoin.ENTRY_ORDER);
+		}
+		Collections.sort(ordered, (c1, c2) -> {
+			final int c = Integer.compare(c2.size(), c1.size());
+			return c != 0 ? c : SpatialJoin.ENTRY_ORDER.compare(c1.get(0), c2.get(0));
+		});
+		return ordered;
+	}
+
+	/**
+	 * @return the near misses, ordered by the dangling node; the near misses of a dangling node with
+	 *         other nodes come first, followed by those with other curves, ordered by feature
+	 * @throws QueryException if the query has been stopped
+	 */
+	List<NearMiss> nearMisses() throws QueryException {
+		final List<NearMiss> nearMisses = new ArrayList<>();
+		if (nearMissDistance <= 0) {
+			return nearMisses;
+		}
+		final Map<Long, List<Integer>> nearMissGrid = new HashMap<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			final Coordinate c = nodes.get(i).coordinate;
+			nearMissGrid.computeIfAbsent(cell(c.x, c.y, nearMissDistance), k -> new ArrayList<>(1)).add(i);
+		}
+		final STRtree edgeTree = new STRtree();
+		for (final Edge edge : edges) {
+			edgeTree.insert(edge.line.getEnvelopeInternal(), edge);
+		}
+		int processed = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			final NetworkNode node = nodes.get(i);
+			if (!node.isDangling()) {
+				continue;
+			}
+			if (++processed % CHECK_STOP_INTERVAL == 0) {
+				job.checkStop();
+			}
+			final long cx = (long) Math.floor(node.coordinate.x / nearMissDistance);
+			final long cy = (long) Math.floor(node.coordinate.y / nearMissDistance);
+			for (long x = cx - 1; x <= cx + 1; x++) {
+				for (long y = cy - 1; y <= cy + 1; y++) {
+					final List<Integer> candidates = nearMissGrid.get(key(x, y));
+					if (candidates == null) {
+						continue;
+					}
+					for (final int j : candidates) {
+						final NetworkNode other = nodes.get(j);
+						// Report a pair of dangling nodes only once
+						if (j == i || j == node.neighbour || (other.isDangling() && j < i)) {
+							continue;
+						}
+						final double distance = node.coordinate.distance(other.coordinate);
+						if (distance <= nearMissDistance) {
+							nearMisses.add(new NearMiss(node, other.features, other.coordinate, distance));
+						}
+					}
+				}
+			}
+			nearMisses.addAll(nearMissesWithCurves(i, edgeTree));
+		}
+		return nearMisses;
+	}
+
+	/**
+	 * Find the curves whose interior lies within the near miss distance of a dangling node. A curve
+	 * whose nearest point is one of its end points is not reported, that case is covered by the near
+	 * misses between nodes.
+	 */
+	private List<NearMiss> nearMissesWithCurves(final int index, final STRtree edgeTree) {
+		final NetworkNode node = nodes.get(index);
+		final Envelope searchEnvelope = new Envelope(node.coordinate);
+		searchEnvelope.expandBy(nearMissDistance);
+		final Geometry point = edges.get(0).line.getFactory().createPoint(node.coordinate);
+		// The nearest curve per feature, for features with multiple curves
+		final Map<IndexEntry, NearMiss> nearest = new HashMap<>();
+		@SuppressWarnings("unchecked")
+		final List<Edge> candidates = edgeTree.query(searchEnvelope);
+		for (final Edge edge : candidates) {
+			if (edge.start == index || edge.end == index) {
+				continue;
+			}
+			final Coordinate closest = DistanceOp.nearestPoints(edge.line, point)[0];
+			final double distance = closest.distance(node.coordinate);
+			if (distance > nearMissDistance || closest.equals2D(edge.line.getCoordinateN(0))
+					|| closest.equals2D(edge.line.getCoordinateN(edge.line.getNumPoints() - 1))) {
+				continue;
+			}
+			final NearMiss previous = nearest.get(edge.feature);
+			if (previous == null || distance < previous.distance) {
+				final Set<IndexEntry> features = new LinkedHashSet<>(1);
+				features.add(edge.feature);
+				nearest.put(edge.feature, new NearMiss(node, features, closest, distance));
+			}
+		}
+		final List<NearMiss> nearMisses = new ArrayList<>(nearest.values());
+		nearMisses.sort((m1, m2) -> SpatialJoin.ENTRY_ORDER.compare(m1.features.iterator().next(),
+				m2.features.iterator().next()));
+		return nearMisses;
+	}
+
+	private int node(final Coordinate coordinate, final IndexEntry feature) {
+		int index = tolerance > 0 ? snap(coordinate) : exactNodes.getOrDefault(coordinate, -1);
+		if (index < 0) {
+			index = nodes.size();
+			final Coordinate c = new Coordinate(coordinate.x, coordinate.y);
+			nodes.add(new NetworkNode(c));
+			if (tolerance > 0) {
+				grid.computeIfAbsent(cell(c.x, c.y, tolerance), k -> new ArrayList<>(1)).add(index);
+			} else {
+				exactNodes.put(c, index);
+			}
+			if (index == parent.length) {
+				final int[] grown = new int[parent.length * 2];
+				System.arraycopy(parent, 0, grown, 0, parent.length);
+				parent = grown;
+			}
+			parent[index] = index;
+		}
+		nodes.get(index).features.add(feature);
+		return index;
+	}
+
+	private int snap(final Coordinate coordinate) {
+		final long cx = (long) Math.floor(coordinate.x / tolerance);
+		final long cy = (long) Math.floor(coordinate.y / tolerance);
+		int nearest = -1;
+		double nearestDistance = Double.MAX_VALUE;
+		for (long x = cx - 1; x <= cx + 1; x++) {
+			for (long y = cy - 1; y <= cy + 1; y++) {
+				final List<Integer> candidates = grid.get(key(x, y));
+				if (candidates == null) {
+					continue;
+				}
+				for (final int candidate : candidates) {
+					final double distance = nodes.get(candidate).coordinate.distance(coordinate);
+					if (distance <= tolerance && distance < nearestDistance) {
+						nearest = candidate;
+						nearestDistance = distance;
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	private void addEdge(final int start, final int end) {
+		final NetworkNode startNode = nodes.get(start);
+		final NetworkNode endNode = nodes.get(end);
+		startNode.degree++;
+		endNode.degree++;
+		if (startNode.neighbour < 0) {
+			startNode.neighbour = end;
+		}
+		if (endNode.neighbour < 0) {
+			endNode.neighbour = start;
+		}
+		union(start, end);
+	}
+
+	private int find(int node) {
+		while (parent[node] != node) {
+			// Path halving
+			parent[node] = parent[parent[node]];
+			node = parent[node];
+		}
+		return node;
+	}
+
+	private void union(final int node1, final int node2) {
+		final int root1 = find(node1);
+		final int root2 = find(node2);
+		if (root1 != root2) {
+			// Attach to the older root, so that the representative of a component is its first node
+			if (root1 < root2) {
+				parent[root2] = root1;
+			} else {
+				parent[root1] = root2;
+			}
+		}
+	}
+
+	private static long cell(final double x, final double y, final double size) {
+		return key((long) Math.floor(x / size), (long) Math.floor(y / size));
+	}
+
+	private static long key(final long x, final long y) {
+		return (x << 32) ^ (y & 0xffffffffL);
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.davidmoten.rtree.Entries;
+import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.Leaf;
+import com.github.davidmoten.rtree.Node;
+import com.github.davidmoten.rtree.NonLeaf;
+import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Geometries;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the union of large sets of geometries in parallel.
+ * <p>
+ * The geometries are partitioned spatially by an r-tree: either the spatial index of the indexed
+ * features, or an r-tree that is bulk loaded from the given geometries. The geometries of each leaf
+ * are unioned with a cascaded union, and the results are merged along the tree, so that mostly
+ * neighbouring geometries are unioned with each other. The partitions are processed concurrently on
+ * the common ForkJoinPool.
+ * </p>
+ * <p>
+ * The query thread waits for the result and checks regularly if the query has been stopped, for
+ * example because of the query timeout. In that case the remaining tasks are cancelled.
+ * </p>
+ */
+final class ParallelUnion {
+
+	private static final Logger logger = LoggerFactory.getLogger(ParallelUnion.class);
+
+	// Minimum number of geometries for which ggeo:union uses the parallel union, default is 1000
+	public static final String ETF_UNION_PARALLEL_THRESHOLD = "etf.gmlgeox.union.parallelthreshold";
+
+	static final int PARALLEL_THRESHOLD = Integer.valueOf(System.getProperty(ETF_UNION_PARALLEL_THRESHOLD, "1000"));
+
+	// Number of geometries per partition of a bulk loaded r-tree
+	private static final int PARTITION_SIZE = 32;
+
+	// Interval in which the query thread checks if the query has been stopped, in milliseconds
+	private static final long CHECK_STOP_INTERVAL = 500;
+
+	// Interval for progress messages, in milliseconds
+	private static final long PROGRESS_INTERVAL = 10000;
+
+	private final Job job;
+	private final AtomicInteger partitionsDone = new AtomicInteger();
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	ParallelUnion(final Job job) {
+		this.job = job;
+	}
+
+	/**
+	 * Union the given geometries
+	 *
+	 * @param geometries the geometries
+	 * @param factory the factory used to create the result if there are no geometries
+	 * @return the union
+	 * @throws QueryException if the query has been stopped or the union failed
+	 */
+	Geometry union(final List<Geometry> geometries, final com.vividsolutions.jts.geom.GeometryFactory factory)
+			throws QueryException {
+		final List<Entry<Geometry, Rectangle>> entries = new ArrayList<>(geometries.size());
+		final List<Geometry> empty = new ArrayList<>(1);
+		for (final Geometry geometry : geometries) {
+			final Envelope env = geometry.getEnvelopeInternal();
+			if (env.isNull()) {
+				empty.add(geometry);
+			} else {
+				entries.add(Entries.entry(geometry,
+						Geometries.rectangle(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY())));
+			}
+		}
+		if (entries.isEmpty()) {
+			return empty.isEmpty() ? factory.createGeometryCollection(null) : UnaryUnionOp.union(empty);
+		}
+		final RTree<Geometry, Rectangle> tree = RTree.maxChildren(PARTITION_SIZE).create(entries);
+		return union(tree, e -> e);
+	}
+
+	/**
+	 * Union the geometries of the entries of an r-tree
+	 *
+	 * @param tree the r-tree
+	 * @param geometries provides the geometry of an entry value; must be thread-safe and must not
+	 *        access the database
+	 * @return the union, or <code>null</code> if the tree is empty
+	 * @throws QueryException if the query has been stopped or the union failed
+	 */
+	<T, S extends com.github.davidmoten.rtree.geometry.Geometry> Geometry union(final RTree<T, S> tree,
+			final java.util.function.Function<T, Geometry> geometries) throws QueryException {
+		if (!tree.root().isPresent()) {
+			return null;
+		}
+		final int partitions = countLeaves(tree.root().get());
+		final ForkJoinTask<Geometry> task = ForkJoinPool.commonPool()
+				.submit(new UnionTask<>(tree.root().get(), geometries));
+		long lastProgress = System.currentTimeMillis();
+		try {
+			while (true) {
+				try {
+					return task.get(CHECK_STOP_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (final TimeoutException e) {
+					job.checkStop();
+					if (logger.isDebugEnabled() && System.currentTimeMillis() - lastProgress > PROGRESS_INTERVAL) {
+						lastProgress = System.currentTimeMillis();
+						logger.debug("Union progress: {} of {} partitions", partitionsDone.get(), partitions);
+					}
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryException("The union has been interrupted.");
+		} catch (final ExecutionException e) {
+			throw new QueryException(e.getCause() != null ? e.getCause() : e);
+		} finally {
+			if (!task.isDone()) {
+				cancelled = true;
+				task.cancel(true);
+			}
+		}
+	}
+
+	private final class UnionTask<T, S extends com.github.davidmoten.rtree.geometry.Geometry>
+			extends RecursiveTask<Geometry> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Node<T, S> node;
+		private final java.util.function.Function<T, Geometry> geometries;
+
+		private UnionTask(final Node<T, S> node, final java.util.function.Function<T, Geometry> geometries) {
+			this.node = node;
+			this.geometries = geometries;
+		}
+
+		@Override
+		protected Geometry compute() {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			final List<Geometry> parts = new ArrayList<>();
+			if (node instanceof Leaf) {
+				for (final Entry<T, S> entry : ((Leaf<T, S>) node).entries()) {
+					parts.add(geometries.apply(entry.value()));
+				}
+				partitionsDone.incrementAndGet();
+			} else {
+				final List<UnionTask<T, S>> subtasks = new ArrayList<>();
+				for (final Node<T, S> child : ((NonLeaf<T, S>) node).children()) {
+					subtasks.add(new UnionTask<>(child, geometries));
+				}
+				for (final UnionTask<T, S> subtask : invokeAll(subtasks)) {
+					parts.add(subtask.join());
+				}
+			}
+			return UnaryUnionOp.union(parts);
+		}
+	}
+
+	private static <T, S extends com.github.davidmoten.rtree.geometry.Geometry> int countLeaves(final Node<T, S> node) {
+		if (node instanceof Leaf) {
+			return 1;
+		}
+		int leaves = 0;
+		for (final Node<T, S> child : ((NonLeaf<T, S>) node).children()) {
+			leaves += countLeaves(child);
+		}
+		return leaves;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.Leaf;
+import com.github.davidmoten.rtree.Node;
+import com.github.davidmoten.rtree.NonLeaf;
+import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygonal;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+import de.interactive_instruments.etf.bsxm.SpatialJoin.GeometryLoader;
+
+/**
+ * Determines the indexed polygons that contain each of a set of points.
+ * <p>
+ * The candidate polygons of each point are found in the r-tree. The geometry of each candidate
+ * polygon is loaded once and prepared with an {@link IndexedPointInAreaLocator}, which locates a
+ * point in logarithmic time of the number of polygon edges. The preparation of the polygons and the
+ * classification of the points are done in parallel. A point on the boundary of a polygon is
+ * located in that polygon. Indexed features that are not polygonal are ignored.
+ * </p>
+ */
+final class PointLocator {
+
+	// Number of points after which the query is checked for a timeout
+	private static final int CHECK_STOP_INTERVAL = 10000;
+
+	private final RTree<IndexEntry, ? extends com.github.davidmoten.rtree.geometry.Geometry> index;
+	private final GeometryLoader loader;
+	private final Job job;
+
+	/**
+	 * @param index the spatial index of the polygons
+	 * @param loader provides the geometries of the indexed features
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	PointLocator(final RTree<IndexEntry, ? extends com.github.davidmoten.rtree.geometry.Geometry> index,
+			final GeometryLoader loader, final Job job) {
+		this.index = index;
+		this.loader = loader;
+		this.job = job;
+	}
+
+	/**
+	 * Locate the points
+	 *
+	 * @param points the points
+	 * @return for each point, the polygons that contain it, ordered by feature
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	List<List<IndexEntry>> locate(final List<Coordinate> points) throws QueryException {
+		// Candidates from the r-tree
+		final List<List<IndexEntry>> candidates = new ArrayList<>(points.size());
+		final Map<IndexEntry, Geometry> polygons = new IdentityHashMap<>();
+		for (int i = 0; i < points.size(); i++) {
+			if ((i + 1) % CHECK_STOP_INTERVAL == 0) {
+				job.checkStop();
+			}
+			final List<IndexEntry> pointCandidates = new ArrayList<>(1);
+			if (index.root().isPresent()) {
+				collect(index.root().get(), points.get(i), pointCandidates);
+			}
+			for (final IndexEntry candidate : pointCandidates) {
+				if (!polygons.containsKey(candidate)) {
+					final Geometry geometry = loader.load(candidate);
+					polygons.put(candidate, geometry instanceof Polygonal ? geometry : null);
+				}
+			}
+			candidates.add(pointCandidates);
+		}
+		job.checkStop();
+
+		// Prepare the polygons
+		final List<IndexEntry> entries = new ArrayList<>(polygons.size());
+		for (final Map.Entry<IndexEntry, Geometry> polygon : polygons.entrySet()) {
+			if (polygon.getValue() != null) {
+				entries.add(polygon.getKey());
+			}
+		}
+		final List<IndexedPointInAreaLocator> prepared = entries.parallelStream()
+				.map(entry -> new IndexedPointInAreaLocator(polygons.get(entry))).collect(Collectors.toList());
+		final Map<IndexEntry, IndexedPointInAreaLocator> locators = new IdentityHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			locators.put(entries.get(i), prepared.get(i));
+		}
+		job.checkStop();
+
+		// Classify the points
+		return IntStream.range(0, points.size()).parallel().mapToObj(i -> {
+			final List<IndexEntry> containing = new ArrayList<>(1);
+			for (final IndexEntry candidate : candidates.get(i)) {
+				final IndexedPointInAreaLocator locator = locators.get(candidate);
+				if (locator != null && locator.locate(points.get(i)) != Location.EXTERIOR) {
+					containing.add(candidate);
+				}
+			}
+			Collections.sort(containing, SpatialJoin.ENTRY_ORDER);
+			return containing;
+		}).collect(Collectors.toList());
+	}
+
+	private static <S extends com.github.davidmoten.rtree.geometry.Geometry> void collect(
+			final Node<IndexEntry, S> node, final Coordinate point, final List<IndexEntry> candidates) {
+		if (!contains(node.geometry().mbr(), point)) {
+			return;
+		}
+		if (node instanceof Leaf) {
+			for (final Entry<IndexEntry, S> entry : ((Leaf<IndexEntry, S>) node).entries()) {
+				if (contains(entry.geometry().mbr(), point)) {
+					candidates.add(entry.value());
+				}
+			}
+		} else {
+			for (final Node<IndexEntry, S> child : ((NonLeaf<IndexEntry, S>) node).children()) {
+				collect(child, point, candidates);
+			}
+		}
+	}
+
+	/**
+	 * Checks if an r-tree rectangle contains a point. The rectangle has float precision, so it is
+	 * widened by one ulp.
+	 */
+	private static boolean contains(final Rectangle rectangle, final Coordinate point) {
+		return point.x >= rectangle.x1() - Math.ulp(rectangle.x1()) && point.x <= rectangle.x2() + Math.ulp(rectangle.x2())
+				&& point.y >= rectangle.y1() - Math.ulp(rectangle.y1())
+				&& point.y <= rectangle.y2() + Math.ulp(rectangle.y2());
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.IntersectionMatrix;
+
+import org.basex.api.dom.BXNode;
+import org.basex.data.Data;
+import org.basex.query.value.node.DBNode;
+
+import de.interactive_instruments.etf.bsxm.GmlGeoX.SpatialRelOp;
+
+/**
+ * Caches the DE-9IM intersection matrices of geometry pairs, so that several spatial relationship
+ * operators and intersection patterns can be evaluated on the same pair with one relate
+ * computation.
+ * <p>
+ * Computing the full matrix is more expensive than evaluating a single predicate, for which JTS has
+ * shortcuts. A matrix is therefore only computed for an operator if the pair has been tested before,
+ * see {@link #isRepeated(Object, Object)}, or if the matrix itself is requested.
+ * </p>
+ * <p>
+ * Pairs are identified by their database nodes, by database and pre value. Other arguments, for
+ * example JTS geometries, are transient and not cached. A matrix cached for (a, b) is also used for
+ * (b, a), transposed.
+ * </p>
+ */
+final class RelationMatrixCache {
+
+	// Max number of cached intersection matrices as number, default is 10000
+	public static final String ETF_RELATECACHE_SIZE = "etf.gmlgeox.relatecache.size";
+
+	/**
+	 * The intersection matrix of a geometry pair, with the dimensions of the geometries
+	 */
+	static final class Relation {
+		final IntersectionMatrix matrix;
+		final int dimension1;
+		final int dimension2;
+
+		Relation(final IntersectionMatrix matrix, final int dimension1, final int dimension2) {
+			this.matrix = matrix;
+			this.dimension1 = dimension1;
+			this.dimension2 = dimension2;
+		}
+
+		Relation transpose() {
+			final IntersectionMatrix transposed = new IntersectionMatrix(matrix);
+			transposed.transpose();
+			return new Relation(transposed, dimension2, dimension1);
+		}
+
+		/**
+		 * Evaluate a spatial relationship operator like the according JTS predicate
+		 *
+		 * @param op the spatial relationship operator
+		 * @return the result of the predicate
+		 */
+		boolean satisfies(final SpatialRelOp op) {
+			switch (op) {
+			case CONTAINS:
+				return matrix.isContains();
+			case CROSSES:
+				return matrix.isCrosses(dimension1, dimension2);
+			case EQUALS:
+				return matrix.isEquals(dimension1, dimension2);
+			case INTERSECTS:
+				return matrix.isIntersects();
+			case ISDISJOINT:
+				return matrix.isDisjoint();
+			case ISWITHIN:
+				return matrix.isWithin();
+			case OVERLAPS:
+				return matrix.isOverlaps(dimension1, dimension2);
+			case TOUCHES:
+				return matrix.isTouches(dimension1, dimension2);
+			default:
+				throw new IllegalArgumentException("Unknown spatial relationship operator: " + op.toString());
+			}
+		}
+	}
+
+	private static final class Key {
+		private final Object arg1;
+		private final Object arg2;
+
+		private Key(final Object arg1, final Object arg2) {
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) o;
+			return arg1.equals(other.arg1) && arg2.equals(other.arg2);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * arg1.hashCode() + arg2.hashCode();
+		}
+	}
+
+	private static final class NodeKey {
+		private final Data data;
+		private final int pre;
+
+		private NodeKey(final Data data, final int pre) {
+			this.data = data;
+			this.pre = pre;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof NodeKey && ((NodeKey) o).data == data && ((NodeKey) o).pre == pre;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(data) + pre;
+		}
+	}
+
+	private final Cache<Key, Relation> cache = Caffeine.newBuilder()
+			.maximumSize(Long.valueOf(System.getProperty(ETF_RELATECACHE_SIZE, "10000"))).build();
+
+	// Pairs that have been tested with a spatial relationship operator
+	private final Cache<Key, Boolean> tested = Caffeine.newBuilder()
+			.maximumSize(Long.valueOf(System.getProperty(ETF_RELATECACHE_SIZE, "10000"))).build();
+
+	/**
+	 * Record that a spatial relationship operator is evaluated on two arguments, and check if the pair
+	 * has already been tested before, in any order
+	 *
+	 * @param arg1 the first argument
+	 * @param arg2 the second argument
+	 * @return true if the pair has been tested before, false if it is tested for the first time or the
+	 *         arguments cannot be identified
+	 */
+	boolean isRepeated(final Object arg1, final Object arg2) {
+		final Object key1 = keyOf(arg1);
+		final Object key2 = keyOf(arg2);
+		if (key1 == null || key2 == null) {
+			return false;
+		}
+		final Key key = new Key(key1, key2);
+		if (tested.getIfPresent(key) != null || tested.getIfPresent(new Key(key2, key1)) != null) {
+			return true;
+		}
+		tested.put(key, Boolean.TRUE);
+		return false;
+	}
+
+	/**
+	 * Get the cached relation of two arguments
+	 *
+	 * @param arg1 the first argument
+	 * @param arg2 the second argument
+	 * @return the relation, or <code>null</code> if it is not cached
+	 */
+	Relation get(final Object arg1, final Object arg2) {
+		final Object key1 = keyOf(arg1);
+		final Object key2 = keyOf(arg2);
+		if (key1 == null || key2 == null) {
+			return null;
+		}
+		final Relation relation = cache.getIfPresent(new Key(key1, key2));
+		if (relation != null) {
+			return relation;
+		}
+		final Relation inverse = cache.getIfPresent(new Key(key2, key1));
+		return inverse != null ? inverse.transpose() : null;
+	}
+
+	/**
+	 * Compute the relation of two geometries and cache it, if the arguments can be identified
+	 *
+	 * @param arg1 the argument of the first geometry
+	 * @param arg2 the argument of the second geometry
+	 * @param geom1 the first geometry
+	 * @param geom2 the second geometry
+	 * @return the relation
+	 */
+	Relation relate(final Object arg1, final Object arg2, final Geometry geom1, final Geometry geom2) {
+		final Relation relation = new Relation(geom1.relate(geom2), geom1.getDimension(), geom2.getDimension());
+		final Object key1 = keyOf(arg1);
+		final Object key2 = keyOf(arg2);
+		if (key1 != null && key2 != null) {
+			cache.put(new Key(key1, key2), relation);
+		}
+		return relation;
+	}
+
+	private static Object keyOf(final Object arg) {
+		final Object o = arg instanceof BXNode ? ((BXNode) arg).getNode() : arg;
+		if (o instanceof DBNode) {
+			return new NodeKey(((DBNode) o).data(), ((DBNode) o).pre());
+		}
+		return null;
+	}
+}
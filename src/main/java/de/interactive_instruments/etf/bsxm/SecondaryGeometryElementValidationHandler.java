@@ -32,7 +32,6 @@ import nl.vrom.roo.validator.core.errorlocation.IdErrorLocation;
 import org.deegree.commons.xml.XMLParsingException;
 import org.deegree.cs.coordinatesystems.ICRS;
 import org.deegree.cs.exceptions.UnknownCRSException;
-import org.deegree.cs.persistence.CRSManager;
 import org.deegree.geometry.Geometry;
 import org.deegree.geometry.composite.CompositeGeometry;
 import org.deegree.geometry.composite.CompositeSolid;
@@ -218,7 +217,7 @@ public class SecondaryGeometryElementValidationHandler implements ElementHandler
 
 			ICRS defaultCRS = null;
 			if (defaultSrsName != null) {
-				defaultCRS = CRSManager.getCRSRef(defaultSrsName);
+				defaultCRS = CRSReferenceCache.getCRSRef(defaultSrsName);
 			}
 
 			gmlStream.setDefaultCRS(defaultCRS);
@@ -0,0 +1,434 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import com.github.davidmoten.rtree.Entry;
+import com.github.davidmoten.rtree.Leaf;
+import com.github.davidmoten.rtree.Node;
+import com.github.davidmoten.rtree.NonLeaf;
+import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+
+import de.interactive_instruments.etf.bsxm.GmlGeoX.SpatialRelOp;
+
+/**
+ * Computes all pairs of indexed features whose geometries satisfy a spatial relationship.
+ * <p>
+ * Candidate pairs are determined by a synchronized traversal of the r-trees: only node pairs with
+ * intersecting bounding boxes are descended. The candidates are then refined in parallel, each
+ * geometry of the first set is prepared once and tested against all of its candidates. Geometries
+ * are loaded in the query thread, batch by batch, so that the refinement does not access the
+ * database.
+ * </p>
+ * <p>
+ * Only relationships that require the geometries to intersect can be joined this way, the disjoint
+ * relationship is not supported.
+ * </p>
+ */
+final class SpatialJoin {
+
+	// Number of features of the first set whose geometries are loaded and refined together
+	private static final int BATCH_SIZE = 1024;
+
+	// Check for a timeout or an interrupted query after this number of visited node pairs
+	private static final int CHECK_STOP_INTERVAL = 10000;
+
+	/**
+	 * Provides the geometry of an indexed feature
+	 */
+	interface GeometryLoader {
+		Geometry load(IndexEntry entry) throws QueryException;
+	}
+
+	/**
+	 * A spatial relationship operator or a DE-9IM intersection pattern
+	 */
+	static final class Relationship {
+		private final SpatialRelOp op;
+		private final String pattern;
+		private final boolean symmetric;
+
+		private Relationship(final SpatialRelOp op, final String pattern, final boolean symmetric) {
+			this.op = op;
+			this.pattern = pattern;
+			this.symmetric = symmetric;
+		}
+
+		/**
+		 * Parse a relationship
+		 *
+		 * @param relationship the name of a spatial relationship operator (for example 'intersects',
+		 *        'within' or 'isWithin') or a DE-9IM intersection pattern
+		 * @return the relationship
+		 * @throws QueryException if the relationship is unknown or cannot be joined
+		 */
+		static Relationship parse(final String relationship) throws QueryException {
+			if (relationship == null) {
+				throw new QueryException("The spatial relationship is null.");
+			}
+			final String rel = relationship.trim();
+			if (GmlGeoX.INTERSECTIONPATTERN.matcher(rel).matches()) {
+				if (!requiresIntersection(rel)) {
+					throw new QueryException("The intersection pattern '" + rel
+							+ "' does not require the geometries to intersect and cannot be used in a spatial join.");
+				}
+				return new Relationship(null, rel, rel.equals(transpose(rel)));
+			}
+			final String name = rel.toUpperCase(Locale.ENGLISH);
+			final SpatialRelOp op;
+			if (name.equals("WITHIN")) {
+				op = SpatialRelOp.ISWITHIN;
+			} else if (name.equals("DISJOINT") || name.equals("ISDISJOINT")) {
+				throw new QueryException("The disjoint relationship cannot be used in a spatial join.");
+			} else {
+				try {
+					op = SpatialRelOp.valueOf(name);
+				} catch (final IllegalArgumentException e) {
+					throw new QueryException("Unknown spatial relationship '" + relationship
+							+ "'. Expected the name of a spatial relationship operator or an intersection pattern.");
+				}
+			}
+			return new Relationship(op, null, op != SpatialRelOp.CONTAINS && op != SpatialRelOp.ISWITHIN);
+		}
+
+		boolean test(final PreparedGeometry prepared, final Geometry geom2) {
+			if (pattern != null) {
+				return prepared.getGeometry().relate(geom2, pattern);
+			}
+			switch (op) {
+			case CONTAINS:
+				return prepared.contains(geom2);
+			case CROSSES:
+				return prepared.crosses(geom2);
+			case EQUALS:
+				return prepared.getGeometry().equals(geom2);
+			case INTERSECTS:
+				return prepared.intersects(geom2);
+			case ISWITHIN:
+				return prepared.within(geom2);
+			case OVERLAPS:
+				return prepared.overlaps(geom2);
+			case TOUCHES:
+				return prepared.touches(geom2);
+			default:
+				throw new IllegalArgumentException("Unsupported spatial relationship operator: " + op.toString());
+			}
+		}
+
+		private static boolean requiresIntersection(final String pattern) {
+			// Interior/interior, interior/boundary, boundary/interior, boundary/boundary
+			for (final int i : new int[]{0, 1, 3, 4}) {
+				final char c = pattern.charAt(i);
+				if (c == 'T' || c == '0' || c == '1' || c == '2') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static String transpose(final String pattern) {
+			final char[] t = new char[9];
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					t[c * 3 + r] = pattern.charAt(r * 3 + c);
+				}
+			}
+			return new String(t);
+		}
+	}
+
+	static final Comparator<IndexEntry> ENTRY_ORDER = (e1, e2) -> {
+		final int c = e1.dbname.compareTo(e2.dbname);
+		return c != 0 ? c : Integer.compare(e1.pre, e2.pre);
+	};
+
+	private final Relationship relationship;
+	private final Job job;
+	private final Map<IndexEntry, List<IndexEntry>> candidates = new IdentityHashMap<>();
+	private long visited = 0;
+
+	/**
+	 * @param relationship the spatial relationship
+	 * @param job the query, checked for a timeout or interruption
+	 */
+	SpatialJoin(final Relationship relationship, final Job job) {
+		this.relationship = relationship;
+		this.job = job;
+	}
+
+	/**
+	 * Join the features of an index with themselves. A feature is not paired with itself, even if it
+	 * has been indexed more than once. For symmetric relationships, each pair is only returned once.
+	 *
+	 * @param index the spatial index
+	 * @param loader provides the geometries of the indexed features
+	 * @return the matching pairs, ordered by the first and then the second feature
+	 * @throws QueryException if a geometry could not be loaded, the relationship cannot be computed for
+	 *         a pair of geometries or the query has been stopped
+	 */
+	<S extends com.github.davidmoten.rtree.geometry.Geometry> List<IndexEntry[]> selfJoin(
+			final RTree<IndexEntry, S> index, final GeometryLoader loader) throws QueryException {
+		if (index.root().isPresent()) {
+			traverseSelf(index.root().get());
+		}
+		return refine(loader, loader);
+	}
+
+	/**
+	 * Join the features of two indexes
+	 *
+	 * @param index1 the index with the first features of the pairs
+	 * @param index2 the index with the second features of the pairs
+	 * @param loader1 provides the geometries of the features of the first index
+	 * @param loader2 provides the geometries of the features of the second index
+	 * @return the matching pairs, ordered by the first and then the second feature
+	 * @throws QueryException if a geometry could not be loaded, the relationship cannot be computed for
+	 *         a pair of geometries or the query has been stopped
+	 */
+	<S extends com.github.davidmoten.rtree.geometry.Geometry> List<IndexEntry[]> join(
+			final RTree<IndexEntry, S> index1, final RTree<IndexEntry, S> index2, final GeometryLoader loader1,
+			final GeometryLoader loader2) throws QueryException {
+		if (index1.root().isPresent() && index2.root().isPresent()) {
+			traverse(index1.root().get(), index2.root().get());
+		}
+		return refine(loader1, loader2);
+	}
+
+	private <S extends com.github.davidmoten.rtree.geometry.Geometry> void traverseSelf(final Node<IndexEntry, S> node) {
+		checkStop();
+		if (node instanceof Leaf) {
+			final List<Entry<IndexEntry, S>> entries = ((Leaf<IndexEntry, S>) node).entries();
+			for (int i = 0; i < entries.size(); i++) {
+				for (int j = i + 1; j < entries.size(); j++) {
+					candidate(entries.get(i), entries.get(j), true);
+				}
+			}
+		} else {
+			final List<Node<IndexEntry, S>> children = ((NonLeaf<IndexEntry, S>) node).children();
+			for (int i = 0; i < children.size(); i++) {
+				traverseSelf(children.get(i));
+				for (int j = i + 1; j < children.size(); j++) {
+					if (intersects(children.get(i), children.get(j))) {
+						traverse(children.get(i), children.get(j), true);
+					}
+				}
+			}
+		}
+	}
+
+	private <S extends com.github.davidmoten.rtree.geometry.Geometry> void traverse(final Node<IndexEntry, S> node1,
+			final Node<IndexEntry, S> node2) {
+		if (intersects(node1, node2)) {
+			traverse(node1, node2, false);
+		}
+	}
+
+	private <S extends com.github.davidmoten.rtree.geometry.Geometry> void traverse(final Node<IndexEntry, S> node1,
+			final Node<IndexEntry, S> node2, final boolean self) {
+		checkStop();
+		if (node1 instanceof Leaf && node2 instanceof Leaf) {
+			for (final Entry<IndexEntry, S> e1 : ((Leaf<IndexEntry, S>) node1).entries()) {
+				final Rectangle r1 = e1.geometry().mbr();
+				if (!r1.intersects(node2.geometry().mbr())) {
+					continue;
+				}
+				for (final Entry<IndexEntry, S> e2 : ((Leaf<IndexEntry, S>) node2).entries()) {
+					if (r1.intersects(e2.geometry().mbr())) {
+						candidate(e1, e2, self);
+					}
+				}
+			}
+		} else if (node1 instanceof Leaf) {
+			for (final Node<IndexEntry, S> child2 : ((NonLeaf<IndexEntry, S>) node2).children()) {
+				if (intersects(node1, child2)) {
+					traverse(node1, child2, self);
+				}
+			}
+		} else if (node2 instanceof Leaf) {
+			for (final Node<IndexEntry, S> child1 : ((NonLeaf<IndexEntry, S>) node1).children()) {
+				if (intersects(child1, node2)) {
+					traverse(child1, node2, self);
+				}
+			}
+		} else {
+			for (final Node<IndexEntry, S> child1 : ((NonLeaf<IndexEntry, S>) node1).children()) {
+				if (!intersects(child1, node2)) {
+					continue;
+				}
+				for (final Node<IndexEntry, S> child2 : ((NonLeaf<IndexEntry, S>) node2).children()) {
+					if (intersects(child1, child2)) {
+						traverse(child1, child2, self);
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean intersects(final com.github.davidmoten.rtree.geometry.HasGeometry g1,
+			final com.github.davidmoten.rtree.geometry.HasGeometry g2) {
+		return g1.geometry().mbr().intersects(g2.geometry().mbr());
+	}
+
+	private <S extends com.github.davidmoten.rtree.geometry.Geometry> void candidate(final Entry<IndexEntry, S> e1,
+			final Entry<IndexEntry, S> e2, final boolean self) {
+		if (!e1.geometry().mbr().intersects(e2.geometry().mbr())) {
+			return;
+		}
+		final IndexEntry first = e1.value();
+		final IndexEntry second = e2.value();
+		if (self) {
+			final int order = ENTRY_ORDER.compare(first, second);
+			if (order == 0) {
+				// The same node, indexed twice
+				return;
+			}
+			if (relationship.symmetric) {
+				if (order < 0) {
+					addCandidate(first, second);
+				} else {
+					addCandidate(second, first);
+				}
+			} else {
+				addCandidate(first, second);
+				addCandidate(second, first);
+			}
+		} else {
+			addCandidate(first, second);
+		}
+	}
+
+	private void addCandidate(final IndexEntry first, final IndexEntry second) {
+		candidates.computeIfAbsent(first, k -> new ArrayList<>()).add(second);
+	}
+
+	private List<IndexEntry[]> refine(final GeometryLoader loader1, final GeometryLoader loader2)
+			throws QueryException {
+		final List<IndexEntry> firsts = new ArrayList<>(candidates.keySet());
+		Collections.sort(firsts, ENTRY_ORDER);
+		final List<IndexEntry[]> result = new ArrayList<>();
+		for (int start = 0; start < firsts.size(); start += BATCH_SIZE) {
+			job.checkStop();
+			final List<IndexEntry> batch = firsts.subList(start, Math.min(firsts.size(), start + BATCH_SIZE));
+
+			// Load the geometries in the query thread
+			final Map<IndexEntry, Geometry> geometries = new IdentityHashMap<>();
+			for (final IndexEntry first : batch) {
+				load(first, loader1, geometries);
+				for (final IndexEntry second : candidates.get(first)) {
+					load(second, loader2, geometries);
+				}
+			}
+
+			// Refine in parallel; JTS rejects some geometries, e.g. collections, with an
+			// IllegalArgumentException, which is reported after the stream
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			final List<IndexEntry>[] matches = new List[batch.size()];
+			final String[] failures = new String[batch.size()];
+			IntStream.range(0, batch.size()).parallel().forEach(i -> {
+				final IndexEntry first = batch.get(i);
+				final PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometries.get(first));
+				final List<IndexEntry> matching = new ArrayList<>();
+				for (final IndexEntry second : candidates.get(first)) {
+					try {
+						if (relationship.test(prepared, geometries.get(second))) {
+							matching.add(second);
+						}
+					} catch (final IllegalArgumentException e) {
+						failures[i] = "The spatial relationship between the features '" + first.id + "' and '"
+								+ second.id + "' cannot be computed: " + e.getMessage();
+						break;
+					}
+				}
+				matches[i] = matching;
+			});
+			for (final String failure : failures) {
+				if (failure != null) {
+					throw new QueryException(failure);
+				}
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				Collections.sort(matches[i], ENTRY_ORDER);
+				for (final IndexEntry second : matches[i]) {
+					result.add(new IndexEntry[]{batch.get(i), second});
+				}
+			}
+		}
+		candidates.clear();
+		return result;
+	}
+
+	/**
+	 * Load the geometries of all features of an index, in the query thread
+	 *
+	 * @param index the spatial index
+	 * @param loader provides the geometries of the indexed features
+	 * @param job the query, checked for a timeout or interruption
+	 * @return the geometries of the index entries, by identity of the entries
+	 * @throws QueryException if a geometry could not be loaded or the query has been stopped
+	 */
+	static <S extends com.github.davidmoten.rtree.geometry.Geometry> Map<IndexEntry, Geometry> loadAll(
+			final RTree<IndexEntry, S> index, final GeometryLoader loader, final Job job) throws QueryException {
+		final Map<IndexEntry, Geometry> geometries = new IdentityHashMap<>();
+		if (index.root().isPresent()) {
+			loadAll(index.root().get(), loader, job, geometries);
+		}
+		return geometries;
+	}
+
+	private static <S extends com.github.davidmoten.rtree.geometry.Geometry> void loadAll(
+			final Node<IndexEntry, S> node, final GeometryLoader loader, final Job job,
+			final Map<IndexEntry, Geometry> geometries) throws QueryException {
+		job.checkStop();
+		if (node instanceof Leaf) {
+			for (final Entry<IndexEntry, S> entry : ((Leaf<IndexEntry, S>) node).entries()) {
+				geometries.put(entry.value(), loader.load(entry.value()));
+			}
+		} else {
+			for (final Node<IndexEntry, S> child : ((NonLeaf<IndexEntry, S>) node).children()) {
+				loadAll(child, loader, job, geometries);
+			}
+		}
+	}
+
+	private static void load(final IndexEntry entry, final GeometryLoader loader,
+			final Map<IndexEntry, Geometry> geometries) throws QueryException {
+		if (!geometries.containsKey(entry)) {
+			geometries.put(entry, loader.load(entry));
+		}
+	}
+
+	private void checkStop() {
+		if (++visited % CHECK_STOP_INTERVAL == 0) {
+			job.checkStop();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts the SRS configuration files that are shipped with GmlGeoX to a directory, so that they
+ * can be loaded by the deegree CRSManager.
+ * <p>
+ * The extraction is versioned and checksum-guarded: a marker file records the GmlGeoX version, the
+ * size of every extracted file and a checksum over all files. The checksum is computed over the
+ * resources shipped with GmlGeoX, so that changed resources are detected even if the version is not
+ * known, e.g. when running from a development build. The files are only extracted again if the marker
+ * is missing or does not match the resources or the sizes of the files in the directory, i.e. if
+ * another GmlGeoX version extracted them or if the directory has been truncated or only partially
+ * written.
+ * </p>
+ */
+final class SrsConfigurationExtractor {
+
+	private static final Logger logger = LoggerFactory.getLogger(SrsConfigurationExtractor.class);
+
+	private static final String RESOURCE_BASE = "/srsconfig/";
+
+	private static final String[] RESOURCES = {
+			"default.xml",
+			"deegree/d3/config/ntv2/beta2007.gsb",
+			"deegree/d3/parser-files.xml",
+			"deegree/d3/config/crs-definitions.xml",
+			"deegree/d3/config/datum-definitions.xml",
+			"deegree/d3/config/ellipsoid-definitions.xml",
+			"deegree/d3/config/pm-definitions.xml",
+			"deegree/d3/config/projection-definitions.xml",
+			"deegree/d3/config/transformation-definitions.xml"
+	};
+
+	private static final String MARKER_FILE = ".gmlgeox-srsconfig.properties";
+	private static final String VERSION_KEY = "version";
+	private static final String CHECKSUM_KEY = "checksum";
+	private static final String SIZE_KEY_PREFIX = "size.";
+
+	// Extractions of different GmlGeoX instances of the same JVM must not interfere
+	private static final Object LOCK = new Object();
+
+	// Checksum over the resources, computed at most once per JVM; guarded by LOCK
+	private static String resourceChecksum = null;
+
+	// The directory that has been extracted or verified in this JVM, with the sizes of its files;
+	// guarded by LOCK
+	private static File verifiedDirectory = null;
+	private static Properties verifiedMarker = null;
+
+	private SrsConfigurationExtractor() {}
+
+	/**
+	 * Makes sure the SRS configuration files are available in the given directory and extracts them
+	 * if necessary.
+	 * <p>
+	 * Once a directory has been extracted or verified, later calls in the same JVM only compare the
+	 * sizes of the files with the marker. The checksum over the resources is computed at most once
+	 * per JVM, and only if the marker of an existing directory has to be verified; an extraction
+	 * computes it while the files are copied.
+	 * </p>
+	 *
+	 * @param directory the target directory
+	 * @throws IOException if the files could not be extracted
+	 */
+	static void extract(final File directory) throws IOException {
+		synchronized (LOCK) {
+			if (directory.equals(verifiedDirectory) && hasFiles(directory, verifiedMarker)) {
+				return;
+			}
+			final String version = version();
+			final Properties existing = readMarker(directory);
+			if (existing != null && version.equals(existing.getProperty(VERSION_KEY))
+					&& hasFiles(directory, existing) && resourceChecksum().equals(existing.getProperty(CHECKSUM_KEY))) {
+				logger.debug("Using SRS configuration files previously extracted to {}", directory);
+				verified(directory, existing);
+				return;
+			}
+			logger.debug("Extracting SRS configuration files to {}", directory);
+			if (directory.exists()) {
+				FileUtils.deleteQuietly(directory);
+			}
+			directory.mkdirs();
+
+			final Properties marker = new Properties();
+			final MessageDigest digest = newDigest();
+			for (final String resource : RESOURCES) {
+				final File file = new File(directory, resource);
+				file.getParentFile().mkdirs();
+				try (final InputStream in = new DigestInputStream(openResource(resource), digest);
+						final OutputStream out = new FileOutputStream(file)) {
+					IOUtils.copy(in, out);
+				}
+				marker.setProperty(SIZE_KEY_PREFIX + resource, String.valueOf(file.length()));
+			}
+			resourceChecksum = toHex(digest.digest());
+			marker.setProperty(VERSION_KEY, version);
+			marker.setProperty(CHECKSUM_KEY, resourceChecksum);
+
+			// The marker is written last: an interrupted extraction is repeated
+			try (final OutputStream out = new FileOutputStream(new File(directory, MARKER_FILE))) {
+				marker.store(out, "SRS configuration files extracted by GmlGeoX");
+			}
+			verified(directory, marker);
+		}
+	}
+
+	private static void verified(final File directory, final Properties marker) {
+		verifiedDirectory = directory;
+		verifiedMarker = marker;
+	}
+
+	/**
+	 * @return the marker of the directory, or <code>null</code> if it has no marker
+	 */
+	private static Properties readMarker(final File directory) throws IOException {
+		final File markerFile = new File(directory, MARKER_FILE);
+		if (!markerFile.isFile()) {
+			return null;
+		}
+		final Properties marker = new Properties();
+		try (final InputStream in = new FileInputStream(markerFile)) {
+			marker.load(in);
+		}
+		return marker;
+	}
+
+	/**
+	 * Checks that the marker and all files exist in the directory and have the sizes recorded in the
+	 * marker
+	 */
+	private static boolean hasFiles(final File directory, final Properties marker) {
+		if (!new File(directory, MARKER_FILE).isFile()) {
+			return false;
+		}
+		for (final String resource : RESOURCES) {
+			final File file = new File(directory, resource);
+			if (!file.isFile() || !String.valueOf(file.length()).equals(marker.getProperty(SIZE_KEY_PREFIX + resource))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the checksum over the SRS configuration resources shipped with GmlGeoX
+	 */
+	private static String resourceChecksum() throws IOException {
+		if (resourceChecksum == null) {
+			final MessageDigest digest = newDigest();
+			for (final String resource : RESOURCES) {
+				try (final InputStream in = openResource(resource)) {
+					update(digest, in);
+				}
+			}
+			resourceChecksum = toHex(digest.digest());
+		}
+		return resourceChecksum;
+	}
+
+	private static InputStream openResource(final String resource) throws IOException {
+		final InputStream in = SrsConfigurationExtractor.class.getResourceAsStream(RESOURCE_BASE + resource);
+		if (in == null) {
+			throw new IOException("SRS configuration resource '" + RESOURCE_BASE + resource + "' not found");
+		}
+		return in;
+	}
+
+	private static void update(final MessageDigest digest, final InputStream in) throws IOException {
+		final byte[] buffer = new byte[65536];
+		try (final InputStream digestIn = new DigestInputStream(in, digest)) {
+			while (digestIn.read(buffer) != -1) {
+				// only digest
+			}
+		}
+	}
+
+	private static String version() {
+		final String version = SrsConfigurationExtractor.class.getPackage().getImplementationVersion();
+		return version != null ? version : "unknown";
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IOException("Checksum algorithm for SRS configuration files not available", e);
+		}
+	}
+
+	private static String toHex(final byte[] bytes) {
+		return new BigInteger(1, bytes).toString(16);
+	}
+}
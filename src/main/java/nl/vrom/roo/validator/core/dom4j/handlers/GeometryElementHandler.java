@@ -11,7 +11,6 @@ import nl.vrom.roo.validator.core.errorlocation.IdErrorLocation;
 import org.deegree.commons.xml.XMLParsingException;
 import org.deegree.cs.coordinatesystems.ICRS;
 import org.deegree.cs.exceptions.UnknownCRSException;
-import org.deegree.cs.persistence.CRSManager;
 import org.deegree.geometry.standard.AbstractDefaultGeometry;
 import org.deegree.geometry.validation.GeometryValidator;
 import org.deegree.gml.GMLInputFactory;
@@ -24,6 +23,8 @@ import org.dom4j.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.interactive_instruments.etf.bsxm.CRSReferenceCache;
+
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -185,7 +186,7 @@ public class GeometryElementHandler implements ElementHandler {
 			
 			ICRS defaultCRS = null;
 			if (defaultSrsName != null) {
-				defaultCRS = CRSManager.getCRSRef(defaultSrsName);
+				defaultCRS = CRSReferenceCache.getCRSRef(defaultSrsName);
 			}
 						
 			gmlStream.setDefaultCRS(defaultCRS);
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.junit.Test;
+
+import de.interactive_instruments.etf.bsxm.GmlGeoX.SpatialRelOp;
+
+/**
+ * Compares the {@link EnvelopeFilter} with the JTS predicates, for small collections and for
+ * collections that are indexed with an STRtree.
+ */
+public class EnvelopeFilterTest {
+
+	private static final GeometryFactory FACTORY = new GeometryFactory();
+
+	/**
+	 * A grid of 10 x 10 points
+	 */
+	private static List<Geometry> points() {
+		final List<Geometry> points = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			points.add(FACTORY.createPoint(new Coordinate(i % 10, i / 10)));
+		}
+		return points;
+	}
+
+	private static Geometry square(final double min, final double max) {
+		return FACTORY.toGeometry(new Envelope(min, max, min, max));
+	}
+
+	private static boolean expected(final List<Geometry> gc1, final List<Geometry> gc2, final SpatialRelOp op,
+			final boolean matchAll) {
+		for (final Geometry g1 : gc1) {
+			for (final Geometry g2 : gc2) {
+				final boolean result = EnvelopeFilter.applyPredicate(g1, g2, op);
+				if (matchAll != result) {
+					return result;
+				}
+			}
+		}
+		return matchAll;
+	}
+
+	@Test
+	public void test_indexed() {
+		final List<Geometry> points = points();
+		assertTrue(points.size() >= EnvelopeFilter.INDEX_THRESHOLD);
+		final List<List<Geometry>> collections = new ArrayList<>();
+		// Covers a part, all or none of the points
+		collections.add(Collections.singletonList(square(-0.5, 4.5)));
+		collections.add(Collections.singletonList(square(-1, 10)));
+		collections.add(Collections.singletonList(square(20, 30)));
+		collections.add(Arrays.asList(square(20, 30), square(2.5, 3.5)));
+		for (final List<Geometry> squares : collections) {
+			for (final SpatialRelOp op : SpatialRelOp.values()) {
+				for (final boolean matchAll : new boolean[]{true, false}) {
+					final String message = squares + " " + op + " " + matchAll;
+					final EnvelopeFilter filter = new EnvelopeFilter();
+					assertEquals(message, expected(squares, points, op, matchAll),
+							filter.apply(squares, points, op, matchAll));
+					assertEquals(message, expected(points, squares, op, matchAll),
+							filter.apply(points, squares, op, matchAll));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_statistics() {
+		final List<Geometry> points = points();
+		final List<Geometry> square = Collections.singletonList(square(-0.5, 4.5));
+		final EnvelopeFilter filter = new EnvelopeFilter();
+
+		// The 75 points outside of the square are decided from the index, the first candidate
+		// intersects
+		assertTrue(filter.apply(square, points, SpatialRelOp.INTERSECTS, false));
+		assertEquals(75, filter.getEnvelopeDecisionCount());
+		assertEquals(1, filter.getPredicateEvaluationCount());
+
+		// Not all points intersect, which is known from the points outside of the square
+		assertFalse(filter.apply(square, points, SpatialRelOp.INTERSECTS, true));
+		assertEquals(150, filter.getEnvelopeDecisionCount());
+		assertEquals(1, filter.getPredicateEvaluationCount());
+
+		// Below the threshold, every pair is decided or evaluated individually: the first five
+		// points are in the square, the sixth is decided from the envelopes
+		final List<Geometry> few = points.subList(0, 10);
+		assertFalse(filter.apply(square, few, SpatialRelOp.INTERSECTS, true));
+		assertEquals(151, filter.getEnvelopeDecisionCount());
+		assertEquals(6, filter.getPredicateEvaluationCount());
+		assertTrue(filter.apply(square, few, SpatialRelOp.ISDISJOINT, false));
+		assertEquals(152, filter.getEnvelopeDecisionCount());
+		assertEquals(11, filter.getPredicateEvaluationCount());
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.davidmoten.rtree.geometry.Geometries;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.basex.query.QueryException;
+import org.junit.Test;
+
+/**
+ * Tests the geometry cache and the spatial index of the {@link GeometryManager}.
+ */
+public class GeometryManagerTest {
+
+	private static final GeometryFactory FACTORY = new GeometryFactory();
+
+	private static Geometry line(final int vertices) {
+		final Coordinate[] coordinates = new Coordinate[vertices];
+		for (int i = 0; i < vertices; i++) {
+			coordinates[i] = new Coordinate(i, i % 2);
+		}
+		return FACTORY.createLineString(coordinates);
+	}
+
+	@Test
+	public void test_memoryPressure() throws QueryException {
+		final AtomicBoolean scarce = new AtomicBoolean();
+		final GeometryManager mgr = new GeometryManager(-1, scarce::get);
+		final long maximum = mgr.getCacheMaximum();
+		assertTrue(maximum >= 20000);
+
+		scarce.set(true);
+		mgr.onMemoryPressure();
+		assertEquals(maximum / 2, mgr.getCacheMaximum());
+		// The JVM reports every collection that ends above the threshold, the cache is only shrunk once
+		mgr.onMemoryPressure();
+		mgr.onMemoryPressure();
+		assertEquals(maximum / 2, mgr.getCacheMaximum());
+
+		// While memory is scarce, only complex geometries are admitted
+		mgr.put("small", line(2));
+		mgr.put("large", line(1000));
+		assertNull(mgr.get("small"));
+		assertNotNull(mgr.get("large"));
+		assertEquals(1, mgr.getRejectedCount());
+
+		// The maximum is restored once memory is no longer scarce
+		scarce.set(false);
+		mgr.put("small", line(2));
+		assertNotNull(mgr.get("small"));
+		assertEquals(maximum, mgr.getCacheMaximum());
+		assertEquals(1, mgr.getRejectedCount());
+
+		// A new pressure episode shrinks the cache again
+		scarce.set(true);
+		mgr.onMemoryPressure();
+		assertEquals(maximum / 2, mgr.getCacheMaximum());
+	}
+
+	@Test
+	public void test_heapBudget() throws QueryException {
+		final GeometryManager mgr1 = new GeometryManager(-1);
+		final GeometryManager mgr2 = new GeometryManager(-1);
+		final GeometryManager fixed = new GeometryManager(100);
+		// The managers that are sized from the heap share one budget
+		assertEquals(mgr1.getCacheMaximum(), mgr2.getCacheMaximum());
+		assertTrue(mgr1.getCacheMaximum() + mgr2.getCacheMaximum() <= GeometryManager.heapBudget());
+		assertEquals(100, fixed.getCacheMaximum());
+	}
+
+	@Test
+	public void test_memoryPressure_fixedSize() throws QueryException {
+		final AtomicBoolean scarce = new AtomicBoolean(true);
+		final GeometryManager mgr = new GeometryManager(100, scarce::get);
+		mgr.onMemoryPressure();
+		// The cache is not shrunk below the minimum
+		assertEquals(100, mgr.getCacheMaximum());
+		scarce.set(false);
+		mgr.put("small", line(2));
+		assertNotNull(mgr.get("small"));
+	}
+
+	private static int count(final Iterable<IndexEntry> entries) {
+		int count = 0;
+		for (final IndexEntry entry : entries) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void test_concurrentIndex() throws Exception {
+		final int threads = 4;
+		final int perThread = 2500;
+		final GeometryManager serial = new GeometryManager(100);
+		final GeometryManager concurrent = new GeometryManager(100);
+		// The concurrently indexed entries are merged into a non-empty tree
+		for (int i = 0; i < 100; i++) {
+			final IndexEntry entry = new IndexEntry("db", i, "initial" + i);
+			serial.index(entry, Geometries.point(-i, -i));
+			concurrent.index(entry, Geometries.point(-i, -i));
+		}
+		assertEquals(100, count(concurrent.search()));
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				serial.index(new IndexEntry("db", i, t + "-" + i), Geometries.point(i % 100, t * 100 + i / 100));
+			}
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final List<Throwable> errors = new ArrayList<>();
+		final List<Thread> indexers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			indexers.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					concurrent.index(new IndexEntry("db", i, thread + "-" + i),
+							Geometries.point(i % 100, thread * 100 + i / 100));
+				}
+			}));
+		}
+		// Searches merge the buffered entries while the other threads are indexing
+		final Thread searcher = new Thread(() -> {
+			try {
+				int previous = 0;
+				while (!done.get()) {
+					final int size = count(concurrent.search());
+					assertTrue(size >= previous);
+					previous = size;
+				}
+			} catch (final Throwable e) {
+				synchronized (errors) {
+					errors.add(e);
+				}
+			}
+		});
+		searcher.start();
+		for (final Thread indexer : indexers) {
+			indexer.start();
+		}
+		for (final Thread indexer : indexers) {
+			indexer.join();
+		}
+		done.set(true);
+		searcher.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		assertEquals(serial.indexSize(), concurrent.indexSize());
+		assertEquals(100 + threads * perThread, concurrent.indexSize());
+		assertEquals(count(serial.search()), count(concurrent.search()));
+		final Rectangle[] boxes = {Geometries.rectangle(0, 0, 10, 10), Geometries.rectangle(-50, -50, 50, 50),
+				Geometries.rectangle(20, 90, 80, 310), Geometries.rectangle(-1000, -1000, 1000, 1000)};
+		for (final Rectangle box : boxes) {
+			assertEquals(count(serial.search(box)), count(concurrent.search(box)));
+			assertEquals(serial.count(box), concurrent.count(box));
+		}
+	}
+}
@@ -414,6 +414,25 @@ public final class GmlGeoXTest extends QueryTest {
 								+ "let $tnunion := ggeo:union(for-each($multiplePoints/@gml:id,$geometryMap))\r\n"
 								+ "return string($tnunion)"},
 
+				{"Relation matrix", booleans(true, true, true, true, true),
+						COMMON_QUERY_PART + "return (\n"
+								+ "  ggeo:relationMatrix($point1,$point2) = '0FFFFFFF2',\n"
+								+ "  ggeo:relationMatrix($curve1,$point1) = 'FF10F0FF2',\n"
+								+ "  ggeo:touches($point1,$curve1), (: true, from the cached matrix :)\n"
+								+ "  ggeo:relate($point1,$curve1,'F0*******'),\n"
+								+ "  not(ggeo:crosses($curve1,$point1))\n"
+								+ ")"},
+
+				{"Transformation", booleans(true, true, true),
+						COMMON_QUERY_PART + "\n"
+								+ "let $geographic := ggeo:transform($point3, 'EPSG:4258')\n"
+								+ "let $back := ggeo:transform($geographic, 'EPSG:4258', 'urn:adv:crs:ETRS89_UTM32')\n"
+								+ "return (\n"
+								+ "  ggeo:equals(ggeo:transform($point1, 'urn:adv:crs:ETRS89_UTM32'), $point1),\n"
+								+ "  count(ggeo:transformAll(($point1, $point3, $curve1), 'EPSG:4258')) = 3,\n"
+								+ "  abs(number(ggeo:envelope($back)[1])) < 0.001\n"
+								+ ")"},
+
 				{"Basic test",
 						booleans(true, true, true, true, true),
 						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
@@ -429,6 +448,409 @@ public final class GmlGeoXTest extends QueryTest {
 								+ "  contains(ggeo:search(0,0,1,1)[@gml:id='p1']/gml:pos[1],'1 1'),\n"
 								+ "  ggeo:isWithin(ggeo:getGeometry('c1',$geom[@gml:id='c1']),$geoms,false()),\n"
 								+ "  number(ggeo:envelope($geom[1])[1])=1\n"
+								+ ")"},
+
+				{"Spatial join",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := for $g in $geom\n"
+								+ " return ggeo:index($g,$g/@gml:id,$g)\n"
+								+ "let $pairs := ggeo:join('intersects')\n"
+								+ "return (\n"
+								+ "  exists($pairs),\n"
+								+ "  every $p in $pairs satisfies ggeo:intersects($p(1),$p(2)) and not($p(1) is $p(2)),\n"
+								+ "  count(ggeo:join('contains'))=count(ggeo:join('within'))\n"
+								+ ")"},
+
+				{"Feature database",
+						booleans(true),
+						"db:create('GmlGeoXFeatures', 'src/test/resources/xml/GmlGeoXFeatures.xml'),\n"
+								+ "db:output(true())"},
+
+				{"Coverage errors",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $parcels := db:open('GmlGeoXFeatures')//ii:Parcel\n"
+								+ "let $dummy := for $p in $parcels\n"
+								+ " return ggeo:index($p,$p/@gml:id,$p/ii:geometry/*)\n"
+								+ "let $errors := ggeo:coverageErrors()\n"
+								+ "let $overlaps := $errors[?type = 'overlap']\n"
+								+ "let $gaps := $errors[?type = 'gap']\n"
+								+ "return (\n"
+								+ "  count($errors) = 2 and exists($overlaps) and exists($gaps),\n"
+								+ "  deep-equal($overlaps?ids, ('cov5','cov6')),\n"
+								+ "  deep-equal($gaps?ids, ('cov1','cov2','cov3','cov4','cov5')),\n"
+								+ "  deep-equal(ggeo:envelope($overlaps?geometry), (15,25,20,30)),\n"
+								+ "  deep-equal(ggeo:envelope($gaps?geometry), (8,10,12,20))\n"
+								+ ")"},
+
+				{"Network analysis",
+						booleans(true, true, true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $roads := db:open('GmlGeoXFeatures')//ii:Road\n"
+								+ "let $dummy := for $r in $roads\n"
+								+ " return ggeo:index($r,$r/@gml:id,$r/ii:geometry/*)\n"
+								+ "let $exact := ggeo:networkAnalysis(0,1)\n"
+								+ "let $snapped := ggeo:networkAnalysis(1,1)\n"
+								+ "let $undershoot := $exact('nearMisses')[1]\n"
+								+ "return (\n"
+								+ "  $exact('nodeCount') = 9 and $snapped('nodeCount') = 8,\n"
+								+ "  deep-equal($exact('components')[1]?*, ('r1','r2')) and count($exact('components')) = 4,\n"
+								+ "  count($snapped('components')) = 3,\n"
+								+ "  count($exact('nearMisses')) = 2 and count($snapped('nearMisses')) = 1,\n"
+								+ "  deep-equal($undershoot('ids'), ('r3','r1')) and $undershoot('distance') = 0.5,\n"
+								+ "  deep-equal($exact('nearMisses')[2]('ids'), ('r4','r5')),\n"
+								+ "  empty(ggeo:networkAnalysis(0,0)('nearMisses'))\n"
+								+ ")"},
+
+				{"Nearest neighbours",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := for $g in $geom\n"
+								+ " return ggeo:index($g,$g/@gml:id,$g)\n"
+								+ "let $p1 := $geom[@gml:id='p1']\n"
+								+ "let $nearest := ggeo:nearest($p1,3)\n"
+								+ "return (\n"
+								+ "  count($nearest)=3,\n"
+								+ "  ggeo:intersects($p1,$nearest[1]),\n"
+								+ "  count(ggeo:withinDistance($p1,0)) = count(for $g in $geom where ggeo:intersects($p1,$g) return $g),\n"
+								+ "  count(ggeo:withinDistance($p1,1000000)) = count($geom),\n"
+								+ "  deep-equal(ggeo:nearest($p1,3.0), $nearest)\n"
+								+ "   and count(ggeo:withinDistance($p1,0.5)) = count(ggeo:withinDistance($p1,5e-1))\n"
+								+ ")"},
+
+				{"Index counts",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := for $g in $geom\n"
+								+ " return ggeo:index($g,$g/@gml:id,$g)\n"
+								+ "let $extent := ggeo:indexExtent()\n"
+								+ "return (\n"
+								+ "  ggeo:searchCount(4,2.4,8,8.5) = count(ggeo:search(4,2.4,8,8.5)),\n"
+								+ "  ggeo:searchCount(0,0,1,1) = count(ggeo:search(0,0,1,1)),\n"
+								+ "  ggeo:searchExists(0,0,1,1),\n"
+								+ "  not(ggeo:searchExists(-100,-100,-99,-99)),\n"
+								+ "  ggeo:searchCount($extent[1],$extent[2],$extent[3],$extent[4]) = count(ggeo:search())\n"
+								+ ")"},
+
+				{"Named indexes",
+						booleans(true, true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $points := $geom[self::gml:Point]\n"
+								+ "let $curves := $geom[self::gml:Curve]\n"
+								+ "let $dummy := (for $g in $points return ggeo:index('points',$g,$g/@gml:id,$g),\n"
+								+ " for $g in $curves return ggeo:index('curves',$g,$g/@gml:id,$g))\n"
+								+ "return (\n"
+								+ "  count(ggeo:search('points')) = count($points),\n"
+								+ "  count(ggeo:search('curves')) = count($curves),\n"
+								+ "  every $n in ggeo:search('points',0,0,1000,1000) satisfies $n/self::gml:Point,\n"
+								+ "  every $p in ggeo:join('points','curves','intersects') satisfies $p(1)/self::gml:Point and $p(2)/self::gml:Curve,\n"
+								+ "  ggeo:dropIndex('points') and empty(ggeo:search('points')),\n"
+								+ "  empty(ggeo:search())\n"
+								+ ")"},
+
+				{"Shared indexes",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $db := db:name(/*)\n"
+								+ "let $points := /*/*/*[self::gml:Point]\n"
+								+ "let $reused := ggeo:acquireIndex($db,'sharedPoints')\n"
+								+ "let $dummy := if ($reused) then () else\n"
+								+ " for $g in $points return ggeo:index('sharedPoints',$g,$g/@gml:id,$g)\n"
+								+ "let $count := count(ggeo:search('sharedPoints'))\n"
+								+ "let $released := ggeo:releaseIndex($db,'sharedPoints')\n"
+								+ "let $reusedAgain := ggeo:acquireIndex($db,'sharedPoints')\n"
+								+ "return (\n"
+								+ "  $count = count($points),\n"
+								+ "  $released,\n"
+								+ "  $reusedAgain,\n"
+								+ "  count(ggeo:search('sharedPoints')) = count($points),\n"
+								+ "  try { ggeo:index('sharedPoints',$points[1],$points[1]/@gml:id,$points[1]), false() }\n"
+								+ "  catch * { contains($err:description,'cannot be modified') }\n"
+								+ ")"},
+
+				{"Index all",
+						booleans(true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $members := /*/*\n"
+								+ "let $errors := ggeo:indexAll($members)\n"
+								+ "return (\n"
+								+ "  map:size($errors) = count($members[*]),\n"
+								+ "  every $e in map:keys($errors) satisfies $e instance of xs:integer,\n"
+								+ "  every $e in map:keys($errors) satisfies $errors($e)('code') = 'MissingId',\n"
+								+ "  empty(ggeo:search())\n"
+								+ ")"},
+
+				{"Index all features",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $features := db:open('GmlGeoXFeatures')/*/ii:member/(ii:Parcel | ii:Road | ii:Marker)\n"
+								+ "let $errors := ggeo:indexAll('all',$features)\n"
+								+ "let $dummy := for $f in $features[@gml:id]\n"
+								+ " return ggeo:index('single',$f,$f/@gml:id,$f/ii:geometry/*)\n"
+								+ "let $ids := function($nodes) { sort($nodes ! string(@gml:id)) }\n"
+								+ "return (\n"
+								+ "  map:size($errors) = 1 and $errors(count($features))('code') = 'MissingId',\n"
+								+ "  count(ggeo:search('all')) = count($features) - 1,\n"
+								+ "  deep-equal($ids(ggeo:search('all')), $ids(ggeo:search('single'))),\n"
+								+ "  deep-equal($ids(ggeo:search('all',4,4,6,6)), ('cov1','m1','r3')),\n"
+								+ "  try { string(map:size(ggeo:indexAll('constructed',($features[1],<ii:Road gml:id='c1'/>)))) }\n"
+								+ "  catch * { contains($err:description,'of a database') and empty(ggeo:search('constructed')) }\n"
+								+ ")"},
+
+				{"Lenient indexing",
+						booleans(true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $features := db:open('GmlGeoXFeatures')/*/ii:member/(ii:Marker[@gml:id] | ii:Broken)\n"
+								+ "let $broken := $features[self::ii:Broken]\n"
+								+ "let $strict := try {\n"
+								+ "  ggeo:index($broken,$broken/@gml:id,$broken/ii:geometry/*), false()\n"
+								+ " } catch * { true() }\n"
+								+ "let $lenient := ggeo:setLenient(true())\n"
+								+ "let $dummy := for $f in $features\n"
+								+ " return ggeo:index($f,$f/@gml:id,$f/ii:geometry/*)\n"
+								+ "let $errors := ggeo:indexErrors()\n"
+								+ "return (\n"
+								+ "  $strict,\n"
+								+ "  deep-equal(ggeo:search() ! string(@gml:id), 'm1'),\n"
+								+ "  count($errors) = 1,\n"
+								+ "  $errors[1]('id') = 'broken1' and $errors[1]('code') = 'UnsupportedGeometryType'\n"
+								+ ")"},
+
+				{"Spatial sort",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := for $g in $geom[position() > 1]\n"
+								+ " return ggeo:index($g,$g/@gml:id,$g)\n"
+								+ "let $sorted := ggeo:sortSpatially($geom)\n"
+								+ "return (\n"
+								+ "  count($sorted) = count($geom),\n"
+								+ "  count($sorted | ()) = count($geom),\n"
+								+ "  $sorted[last()] is $geom[1]\n"
+								+ ")"},
+
+				{"Sharded search",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := (for $g in $geom[self::gml:Point] return ggeo:index('shard1',$g,$g/@gml:id,$g),\n"
+								+ " for $g in $geom[not(self::gml:Point)] return ggeo:index('shard2',$g,$g/@gml:id,$g))\n"
+								+ "let $found := ggeo:searchShards(('shard1','shard2'),0,0,5,5)\n"
+								+ "return (\n"
+								+ "  count($found) = count(ggeo:search('shard1',0,0,5,5)) + count(ggeo:search('shard2',0,0,5,5)),\n"
+								+ "  ggeo:searchCountShards(('shard1','shard2'),0,0,5,5) = count($found),\n"
+								+ "  count(ggeo:searchShards(('shard1','shard2'),-1000,-1000,1000,1000)) = count($geom)\n"
+								+ ")"},
+
+				{"Stale index - database",
+						booleans(true),
+						"db:create('GmlGeoXStale', 'src/test/resources/xml/GmlGeoXFeatures.xml'),\n"
+								+ "db:output(true())"},
+
+				{"Stale index - build",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $roads := db:open('GmlGeoXStale')/*/ii:member/ii:Road\n"
+								+ "let $reused := ggeo:acquireIndex('GmlGeoXStale','stale')\n"
+								+ "let $errors := ggeo:indexAll('stale',$roads)\n"
+								+ "let $stale := ggeo:isIndexStale('stale')\n"
+								+ "return (\n"
+								+ "  not($reused) and map:size($errors) = 0,\n"
+								+ "  not($stale) and count(ggeo:search('stale')) = 5,\n"
+								+ "  ggeo:releaseIndex('GmlGeoXStale','stale')\n"
+								+ ")"},
+
+				{"Stale index - update",
+						booleans(true),
+						"declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $members := db:open('GmlGeoXStale')/*/ii:member\n"
+								+ "return (\n"
+								+ "  replace value of node $members/ii:Road[@gml:id = 'r3']/ii:geometry/*/gml:posList with '35 5 35 10',\n"
+								+ "  delete node $members[ii:Road/@gml:id = 'r5'],\n"
+								+ "  db:output(true())\n"
+								+ ")"},
+
+				{"Stale index - reindex",
+						booleans(true, true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $roads := db:open('GmlGeoXStale')/*/ii:member/ii:Road\n"
+								+ "let $reused := ggeo:acquireIndex('GmlGeoXStale','stale',true())\n"
+								+ "let $stale := ggeo:isIndexStale('stale')\n"
+								+ "let $error := try { string(count(ggeo:search('stale'))) } catch * { $err:description }\n"
+								+ "let $errors := ggeo:reindex('stale',$roads,'r3')\n"
+								+ "let $current := not(ggeo:isIndexStale('stale'))\n"
+								+ "return (\n"
+								+ "  not($reused) and $stale,\n"
+								+ "  contains($error, 'stale'),\n"
+								+ "  map:size($errors) = 0 and $current,\n"
+								+ "  deep-equal(sort(ggeo:search('stale') ! string(@gml:id)), ('r1','r2','r3','r4')),\n"
+								+ "  deep-equal(ggeo:search('stale',34,4,36,11) ! string(@gml:id), 'r3'),\n"
+								+ "  empty(ggeo:search('stale',4,4,6,11))\n"
+								+ ")"},
+
+				{"Envelope filter statistics",
+						booleans(true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $square := <gml:Polygon srsName='EPSG:25832'><gml:exterior><gml:LinearRing>\n"
+								+ " <gml:posList>-0.5 -0.5 4.5 -0.5 4.5 4.5 -0.5 4.5 -0.5 -0.5</gml:posList>\n"
+								+ " </gml:LinearRing></gml:exterior></gml:Polygon>\n"
+								+ "let $grid := for $i in 0 to 99\n"
+								+ " return <gml:Point srsName='EPSG:25832'><gml:pos>{$i mod 10, $i idiv 10}</gml:pos></gml:Point>\n"
+								+ "let $results := (ggeo:intersects($square,$grid,false()), ggeo:intersects($square,$grid,true()))\n"
+								+ "let $statistics := ggeo:envelopeFilterStatistics()\n"
+								+ "return (\n"
+								+ "  $results[1],\n"
+								+ "  not($results[2]),\n"
+								+ "  $statistics('envelopeDecisions') = 150,\n"
+								+ "  $statistics('predicateEvaluations') = 1\n"
+								+ ")"},
+
+				{"Index documents",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $roads := doc('src/test/resources/xml/GmlGeoXFeatures.xml')/*/ii:member/ii:Road\n"
+								+ "let $parsed := parse-xml(serialize(db:open('GmlGeoXStale')))/*/ii:member/ii:Road\n"
+								+ "let $errors := (ggeo:indexAll('document',$roads), ggeo:indexAll('parsed',$parsed))\n"
+								+ "return (\n"
+								+ "  every $e in $errors satisfies map:size($e) = 0,\n"
+								+ "  not(ggeo:isIndexStale('document')) and not(ggeo:isIndexStale('parsed')),\n"
+								+ "  count(ggeo:search('document')) = 5 and ggeo:search('parsed',34,4,36,11) is $parsed[@gml:id = 'r3']\n"
+								+ ")"},
+
+				{"3D search",
+						booleans(true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "declare namespace ii = 'http://www.interactive-instruments.de/test';\n"
+								+ "\n"
+								+ "let $features := db:open('GmlGeoXFeatures')/*/ii:member/(ii:Building | ii:Marker[@gml:id = 'm1'])\n"
+								+ "let $dummy := for $f in $features\n"
+								+ " return ggeo:index('floors',$f,$f/@gml:id,$f/ii:geometry/*)\n"
+								+ "let $ids := function($nodes) { sort($nodes ! string(@gml:id)) }\n"
+								+ "return (\n"
+								+ "  deep-equal($ids(ggeo:search('floors',0,0,10,10)), ('b1','b2','b3','m1')),\n"
+								+ "  deep-equal($ids(ggeo:search3D('floors',0,0,100,10,10,200)), ('b2','m1')),\n"
+								+ "  deep-equal($ids(ggeo:search3D('floors',0,0,-10,10,10,10)), ('b1','m1')),\n"
+								+ "  deep-equal($ids(ggeo:search3D('floors',0,0,200,10,10,250)), 'm1')\n"
+								+ ")"},
+
+				{"Locate points",
+						booleans(true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $surfaces := /*/*/gml:Surface\n"
+								+ "let $points := /*/*/gml:Point\n"
+								+ "let $dummy := for $s in $surfaces\n"
+								+ " return ggeo:index('surfaces',$s,$s/@gml:id,$s)\n"
+								+ "let $located := ggeo:locatePoints($points,'surfaces')\n"
+								+ "return (\n"
+								+ "  count($located) = count($points),\n"
+								+ "  every $a in $located satisfies $a instance of array(*),\n"
+								+ "  every $i in 1 to count($points) satisfies\n"
+								+ "   deep-equal(sort($located[$i]?*),\n"
+								+ "    sort(for $s in $surfaces where ggeo:intersects($points[$i],$s) return string($s/@gml:id)))\n"
+								+ ")"},
+
+				{"Find duplicates",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $dummy := for $g in $geom return ggeo:index('dups',$g,$g/@gml:id,$g)\n"
+								+ "let $groups := function($tolerance) {\n"
+								+ " for $d in ggeo:findDuplicates('dups',$tolerance)\n"
+								+ " return string-join(sort($d?* ! string(@gml:id)), ' ')\n"
+								+ "}\n"
+								+ "let $exact := $groups(0)\n"
+								+ "return (\n"
+								+ "  every $d in ggeo:findDuplicates('dups',0) satisfies array:size($d) >= 2,\n"
+								+ "  $exact = 'p1 p2',\n"
+								+ "  some $g in $exact satisfies tokenize($g) = 'c2' and tokenize($g) = 'c3',\n"
+								+ "  $groups(0.001) = 'p1 p2',\n"
+								+ "  $groups(0.75) = 'p1 p2 p3 p5'\n"
+								+ ")"},
+
+				{"Exact equality",
+						booleans(true, true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $surfaces := $geom[self::gml:Surface]\n"
+								+ "return (\n"
+								+ "  every $g in $geom satisfies ggeo:equalsExact($g,$g,0),\n"
+								+ "  every $g in $geom satisfies ggeo:equalsNorm($g,$g,1e-3) and ggeo:equalsExact($g,$g,0.001),\n"
+								+ "  every $s1 in $surfaces, $s2 in $surfaces satisfies\n"
+								+ "   not(ggeo:equalsExact($s1,$s2,0)) or ggeo:equals($s1,$s2),\n"
+								+ "  ggeo:equalsExact($surfaces[1],($surfaces[1],$surfaces[1]),0,true()),\n"
+								+ "  ggeo:equalsNorm($surfaces[1],$surfaces,0,false())\n"
+								+ ")"},
+
+				{"Diff",
+						booleans(true, true, true, true),
+						"import module namespace ggeo = 'de.interactive_instruments.etf.bsxm.GmlGeoX';\n"
+								+ "declare namespace gml = 'http://www.opengis.net/gml/3.2';\n"
+								+ "\n"
+								+ "let $geom := /*/*/*\n"
+								+ "let $surfaces := $geom[self::gml:Surface]\n"
+								+ "let $dummy := (for $g in $geom return ggeo:index('before',$g,$g/@gml:id,$g),\n"
+								+ " for $g in $geom[position() > 1]\n"
+								+ "  return ggeo:index('after',$g,$g/@gml:id,if ($g is $surfaces[1]) then $surfaces[2] else $g),\n"
+								+ " ggeo:index('after',$geom[1],'new',$geom[1]))\n"
+								+ "let $diff := ggeo:diff('before','after')\n"
+								+ "let $same := ggeo:diff('before','before')\n"
+								+ "return (\n"
+								+ "  $diff?added = 'new' and count($diff?added) = 1,\n"
+								+ "  $diff?removed = string($geom[1]/@gml:id) and count($diff?removed) = 1,\n"
+								+ "  deep-equal($diff?changed, string($surfaces[1]/@gml:id)),\n"
+								+ "  empty(($same?added, $same?removed, $same?changed))\n"
 								+ ")"}
 		};
 	}
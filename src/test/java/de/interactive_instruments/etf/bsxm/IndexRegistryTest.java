@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import static org.junit.Assert.*;
+
+import org.basex.query.QueryException;
+import org.junit.Test;
+
+/**
+ * Tests the leases of the {@link IndexRegistry}.
+ */
+public class IndexRegistryTest {
+
+	@Test
+	public void test_leases() throws QueryException {
+		final IndexRegistry.Leases owner = new IndexRegistry.Leases();
+		final IndexRegistry.Lease built = IndexRegistry.acquire("db", "leases", 1, false);
+		owner.add(built);
+		assertFalse(built.reused);
+		assertTrue(built.isShared());
+
+		// While the index is being built, other queries get a private index
+		final IndexRegistry.Leases other = new IndexRegistry.Leases();
+		final IndexRegistry.Lease building = IndexRegistry.acquire("db", "leases", 1, false);
+		other.add(building);
+		assertFalse(building.reused);
+		assertFalse(building.isShared());
+		assertNotSame(built.index, building.index);
+		assertFalse(other.release("db", "leases").isShared());
+
+		// Once published, the index is reused
+		assertTrue(owner.release("db", "leases").isShared());
+		final IndexRegistry.Lease reused = IndexRegistry.acquire("db", "leases", 1, false);
+		other.add(reused);
+		assertTrue(reused.reused);
+		assertSame(built.index, reused.index);
+		other.close();
+		assertNull(other.release("db", "leases"));
+
+		// A modification of the database invalidates the index
+		final IndexRegistry.Lease rebuilt = IndexRegistry.acquire("db", "leases", 2, false);
+		assertFalse(rebuilt.reused);
+		assertNotSame(built.index, rebuilt.index);
+		IndexRegistry.clear();
+	}
+}
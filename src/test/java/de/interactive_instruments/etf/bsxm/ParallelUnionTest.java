@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.davidmoten.rtree.RTree;
+import com.github.davidmoten.rtree.geometry.Geometries;
+import com.github.davidmoten.rtree.geometry.Rectangle;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+import org.basex.core.jobs.Job;
+import org.basex.query.QueryException;
+import org.junit.Test;
+
+/**
+ * Compares the {@link ParallelUnion} with the cascaded union of JTS.
+ */
+public class ParallelUnionTest {
+
+	private static final GeometryFactory FACTORY = new GeometryFactory();
+
+	/**
+	 * Overlapping squares in several groups, more than fit into one partition
+	 */
+	private static List<Geometry> squares() {
+		final List<Geometry> squares = new ArrayList<>();
+		for (int group = 0; group < 3; group++) {
+			for (int x = 0; x < 20; x++) {
+				for (int y = 0; y < 20; y++) {
+					final double minX = group * 100 + x;
+					squares.add(FACTORY.toGeometry(new Envelope(minX, minX + 1.5, y, y + 1.5)));
+				}
+			}
+		}
+		return squares;
+	}
+
+	private static void assertSameUnion(final Geometry expected, final Geometry actual) {
+		assertEquals(expected.getNumGeometries(), actual.getNumGeometries());
+		assertEquals(expected.getArea(), actual.getArea(), 1e-9);
+		assertEquals(0, expected.symDifference(actual).getArea(), 1e-9);
+	}
+
+	@Test
+	public void test_union() throws QueryException {
+		final List<Geometry> squares = squares();
+		final Geometry expected = CascadedPolygonUnion.union(squares);
+		assertEquals(3, expected.getNumGeometries());
+		assertSameUnion(expected, new ParallelUnion(new Job() {}).union(squares, FACTORY));
+	}
+
+	@Test
+	public void test_unionTree() throws QueryException {
+		// As for the spatial index of the indexed features
+		final List<Geometry> squares = squares();
+		RTree<Integer, Rectangle> tree = RTree.star().create();
+		for (int i = 0; i < squares.size(); i++) {
+			final Envelope env = squares.get(i).getEnvelopeInternal();
+			tree = tree.add(i, Geometries.rectangle(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY()));
+		}
+		assertSameUnion(CascadedPolygonUnion.union(squares),
+				new ParallelUnion(new Job() {}).union(tree, squares::get));
+	}
+
+	@Test
+	public void test_unionEmpty() throws QueryException {
+		final ParallelUnion union = new ParallelUnion(new Job() {});
+		assertTrue(union.union(new ArrayList<>(), FACTORY).isEmpty());
+		assertNull(union.union(RTree.<Integer, Rectangle> create(), i -> null));
+	}
+}
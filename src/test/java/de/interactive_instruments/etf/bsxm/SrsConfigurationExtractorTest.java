@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010-2019 interactive instruments GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.interactive_instruments.etf.bsxm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the SRS configuration files are only extracted if necessary.
+ */
+public class SrsConfigurationExtractorTest {
+
+	private static final String CRS_DEFINITIONS = "deegree/d3/config/crs-definitions.xml";
+
+	// A modification time in the past, so that a rewritten file is detected
+	private static final long PAST = 946684800000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void test_extractOnce() throws IOException {
+		final File directory = new File(folder.getRoot(), "srsconfig");
+		SrsConfigurationExtractor.extract(directory);
+		final File file = new File(directory, CRS_DEFINITIONS);
+		final long length = file.length();
+		assertTrue(length > 0);
+		assertTrue(file.setLastModified(PAST));
+
+		// The files are left untouched
+		SrsConfigurationExtractor.extract(directory);
+		assertEquals(PAST, file.lastModified());
+		assertEquals(length, file.length());
+
+		// A truncated file is extracted again
+		try (final RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+			truncated.setLength(length / 2);
+		}
+		SrsConfigurationExtractor.extract(directory);
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void test_verifyExisting() throws IOException {
+		final File directory1 = new File(folder.getRoot(), "srsconfig1");
+		final File directory2 = new File(folder.getRoot(), "srsconfig2");
+		SrsConfigurationExtractor.extract(directory1);
+		SrsConfigurationExtractor.extract(directory2);
+		final File file = new File(directory1, CRS_DEFINITIONS);
+		assertTrue(file.setLastModified(PAST));
+
+		// A directory that has been extracted before is verified from its marker
+		SrsConfigurationExtractor.extract(directory1);
+		assertEquals(PAST, file.lastModified());
+	}
+}